@@ -0,0 +1,52 @@
+package org.projectlombok.security.totpexample;
+
+/**
+ * The base32 encoding TOTP secrets are written in: lower case and unpadded, which is what TOTP apps accept in the QR code. {@link Totp} generates secrets in it and
+ * decodes them to calculate codes; a {@code UserStore} may use it to store the raw bytes instead (10 bytes instead of 16 characters).
+ */
+public final class Base32 {
+	static final String CHARS = "abcdefghijklmnopqrstuvwxyz234567";
+	
+	private Base32() {}
+	
+	/**
+	 * @throws IllegalArgumentException If {@code text} isn't a multiple of 8 characters long, or contains characters other than lower case base32.
+	 */
+	public static byte[] decode(String text) {
+		if (text.length() % 8 != 0) throw new IllegalArgumentException("base32 text must be a multiple of 8 characters long");
+		byte[] out = new byte[text.length() / 8 * 5];
+		int buffer = 0;
+		int bits = 0;
+		int pos = 0;
+		for (int i = 0; i < text.length(); i++) {
+			int value = CHARS.indexOf(text.charAt(i));
+			if (value == -1) throw new IllegalArgumentException("Not a base32 character: " + text.charAt(i));
+			buffer = (buffer << 5) | value;
+			bits += 5;
+			if (bits >= 8) {
+				bits -= 8;
+				out[pos++] = (byte) (buffer >>> bits);
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * @throws IllegalArgumentException If {@code bytes} isn't a multiple of 5 bytes long.
+	 */
+	public static String encode(byte[] bytes) {
+		if (bytes.length % 5 != 0) throw new IllegalArgumentException("base32 without padding needs a multiple of 5 bytes");
+		StringBuilder out = new StringBuilder(bytes.length / 5 * 8);
+		int buffer = 0;
+		int bits = 0;
+		for (byte b : bytes) {
+			buffer = (buffer << 8) | (b & 0xFF);
+			bits += 8;
+			while (bits >= 5) {
+				bits -= 5;
+				out.append(CHARS.charAt((buffer >>> bits) & 0x1F));
+			}
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,140 @@
+package org.projectlombok.security.totpexample;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects credential stuffing and password spraying: the same password being tried against many different usernames.
+ * 
+ * Failed login attempts are counted in a count-min sketch (a fixed-size table of counters; it never undercounts, and only overcounts a little), keyed on a peppered fingerprint of the password.
+ * Each password is counted once per distinct username (a second sketch keyed on the username/password pair tracks which pairs have been seen already). Once a password has failed against
+ * {@code threshold} different usernames within the window, further attempts with that password can be rejected without running BCrypt at all.
+ * <p>
+ * Memory use is fixed, no matter how many attempts come in. The window slides in 2 halves: counts from the previous half are still included, then dropped entirely.
+ * <p>
+ * SECURITY NOTE: Like the failed password cache, we never store passwords, only an HMAC keyed with a random pepper that never leaves this process's memory.
+ * Only <em>failed</em> attempts are counted, so a password that many real users have in common won't be shed unless someone is actively spraying it.
+ */
+public final class CredentialStuffingDetector {
+	private static final int DEPTH = 4;
+	
+	private final Crypto crypto;
+	private final byte[] pepper;
+	private final int width;
+	private final int threshold;
+	private final long halfWindowMillis;
+	
+	private volatile Generation current, previous;
+	
+	private final AtomicLong shedAttempts = new AtomicLong();
+	
+	private final class Generation {
+		final long start;
+		final AtomicIntegerArray passwords = new AtomicIntegerArray(DEPTH * width);
+		final AtomicIntegerArray pairs = new AtomicIntegerArray(DEPTH * width);
+		
+		Generation(long start) {
+			this.start = start;
+		}
+	}
+	
+	/**
+	 * Creates a detector that sheds a password once it has failed against 20 different usernames within roughly 10 minutes, using about 1MB of memory.
+	 */
+	public CredentialStuffingDetector(Crypto crypto) {
+		this(crypto, 20, TimeUnit.MINUTES.toMillis(10), 1 << 14);
+	}
+	
+	/**
+	 * @param threshold The amount of distinct usernames a password must have failed against before attempts with it are shed.
+	 * @param windowMillis Failures older than this (at most; at least half of it) are forgotten.
+	 * @param width The number of counters per row of the sketch; higher means fewer overcounts and more memory ({@code 64 * width} bytes).
+	 */
+	public CredentialStuffingDetector(Crypto crypto, int threshold, long windowMillis, int width) {
+		if (threshold < 1) throw new IllegalArgumentException("threshold must be at least 1");
+		if (width < 1) throw new IllegalArgumentException("width must be at least 1");
+		this.crypto = crypto;
+		this.pepper = crypto.generateBytes(32);
+		this.width = width;
+		this.threshold = threshold;
+		this.halfWindowMillis = Math.max(1L, windowMillis / 2);
+		long now = System.currentTimeMillis();
+		this.current = new Generation(now);
+		this.previous = new Generation(now);
+	}
+	
+	/**
+	 * @return {@code true} if this password has recently failed against so many different usernames that this attempt should be rejected without checking it.
+	 */
+	public boolean shouldShed(String password) {
+		rotateIfNeeded();
+		int[] idx = indices(fingerprint(password));
+		Generation c = current, p = previous;
+		if (estimate(c.passwords, idx) + estimate(p.passwords, idx) < threshold) return false;
+		shedAttempts.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Records a failed password check.
+	 */
+	public void recordFailure(String username, String password) {
+		rotateIfNeeded();
+		byte[] passwordPrint = fingerprint(password);
+		int[] pairIdx = indices(crypto.hmac(pepper, username.getBytes(StandardCharsets.UTF_8), passwordPrint));
+		Generation c = current, p = previous;
+		boolean newPair = estimate(c.pairs, pairIdx) == 0 && estimate(p.pairs, pairIdx) == 0;
+		increment(c.pairs, pairIdx);
+		if (newPair) increment(c.passwords, indices(passwordPrint));
+	}
+	
+	/** The number of login attempts rejected without running BCrypt. */
+	public long getShedAttempts() {
+		return shedAttempts.get();
+	}
+	
+	/**
+	 * An estimate of the CPU time saved by shedding, based on the average time a BCrypt run takes. That average is measured by {@link Crypto#verifyPassword(String, char[])} itself,
+	 * so failures that were rejected without running BCrypt (say, by the failed password cache) don't drag it down. Give this detector the same {@code Crypto} as the user store.
+	 */
+	public long getEstimatedNanosSaved() {
+		return crypto.getAveragePasswordCheckNanos() * shedAttempts.get();
+	}
+	
+	private void rotateIfNeeded() {
+		long now = System.currentTimeMillis();
+		if (now - current.start < halfWindowMillis) return;
+		synchronized (this) {
+			if (now - current.start < halfWindowMillis) return;
+			// If we've been idle for over a full window, the current generation is stale too.
+			previous = now - current.start < 2 * halfWindowMillis ? current : new Generation(now);
+			current = new Generation(now);
+		}
+	}
+	
+	private byte[] fingerprint(String password) {
+		return crypto.hmac(pepper, password.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private int[] indices(byte[] hash) {
+		int[] idx = new int[DEPTH];
+		for (int row = 0; row < DEPTH; row++) {
+			int o = row * 4;
+			int h = ((hash[o] & 0xff) << 24) | ((hash[o + 1] & 0xff) << 16) | ((hash[o + 2] & 0xff) << 8) | (hash[o + 3] & 0xff);
+			idx[row] = row * width + (int) ((h & 0xffffffffL) % width);
+		}
+		return idx;
+	}
+	
+	private static int estimate(AtomicIntegerArray sketch, int[] idx) {
+		int min = Integer.MAX_VALUE;
+		for (int i : idx) min = Math.min(min, sketch.get(i));
+		return min;
+	}
+	
+	private static void increment(AtomicIntegerArray sketch, int[] idx) {
+		for (int i : idx) sketch.incrementAndGet(i);
+	}
+}
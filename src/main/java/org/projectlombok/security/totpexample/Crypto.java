@@ -1,19 +1,113 @@
 package org.projectlombok.security.totpexample;
 
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * You should generally have a single instance of {@code SecureRandom} which your server uses for all its secure random needs.
  * 
  * This class serves as a container for this concept. It also abstracts the password hash algorithm.
+ * <p>
+ * Random keys are needed on nearly every request (session keys, TOTP secrets), so rather than a single {@code SecureRandom} which every request thread has to queue up for,
+ * this class holds a few of them (stripes); each thread always uses the same stripe. Each stripe draws random bytes from its generator in large blocks, rather than asking for a few bits at a time.
+ * <p>
+ * SECURITY NOTE: Each stripe is a deterministic random bit generator (DRBG where the JVM has it, SHA1PRNG otherwise), seeded once; this is exactly what {@code SecureRandom}
+ * normally does internally. See {@link #Crypto(boolean)} for where the seed comes from.
  */
 public final class Crypto {
 	private static final String KEYCHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+	private static final int BUFFER_SIZE = 512;
+	private static final int SEED_SIZE = 32;
+	
+	private final Stripe[] stripes;
+	private final AtomicLong passwordChecks = new AtomicLong();
+	private final AtomicLong passwordCheckNanos = new AtomicLong();
 	
-	private final SecureRandom random;
+	private static final class Stripe {
+		private final SecureRandom random;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int position = BUFFER_SIZE;
+		
+		Stripe(SecureRandom random) {
+			this.random = random;
+		}
+		
+		// Callers must synchronize on the stripe.
+		int nextByte() {
+			if (position == BUFFER_SIZE) {
+				random.nextBytes(buffer);
+				position = 0;
+			}
+			int b = buffer[position] & 0xFF;
+			// Don't leave used random bytes lying around in memory.
+			buffer[position++] = 0;
+			return b;
+		}
+	}
 	
+	/**
+	 * Creates a {@code Crypto} whose generators seed themselves the way the JVM is configured to; see {@link #Crypto(boolean)}.
+	 */
 	public Crypto() {
-		this.random = new SecureRandom();
+		this(false);
+	}
+	
+	/**
+	 * @param nonBlockingSeed If {@code false}, every generator seeds itself, on first use, from the entropy source the JVM is configured with ({@code securerandom.source}
+	 *     in the {@code java.security} file; on linux that is {@code /dev/random} by default). On some systems that blocks until the OS has gathered enough entropy,
+	 *     which on a freshly booted (virtual) machine can take minutes.
+	 *     If {@code true}, every generator is a SHA1PRNG that is given its seed, from the OS's non-blocking source (on linux, {@code /dev/urandom}), before it is first used,
+	 *     so it never seeds itself; that's fine on any machine that has been running for more than a moment. Where the JVM has no non-blocking source
+	 *     ({@code NativePRNGNonBlocking}, for example on windows, whose default source doesn't block to begin with), the generators seed themselves as if this were {@code false}.
+	 */
+	public Crypto(boolean nonBlockingSeed) {
+		SecureRandom seeder = null;
+		if (nonBlockingSeed) {
+			try {
+				seeder = SecureRandom.getInstance("NativePRNGNonBlocking");
+			} catch (NoSuchAlgorithmException e) {
+				// Not a unix-like OS; see the javadoc.
+			}
+		}
+		
+		int count = Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()));
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) stripes[i] = new Stripe(seeder == null ? newGenerator() : newSeededGenerator(seeder));
+	}
+	
+	private static SecureRandom newSeededGenerator(SecureRandom seeder) {
+		// NB: This only works for SHA1PRNG: it uses the seed given before its first use as its entire seed. A DRBG would still seed itself first, from the blocking source.
+		SecureRandom random;
+		try {
+			random = SecureRandom.getInstance("SHA1PRNG");
+		} catch (NoSuchAlgorithmException e) {
+			throw new InternalError("No SecureRandom algorithm available; check your JVM security settings, they may have been restricted");
+		}
+		random.setSeed(seeder.generateSeed(SEED_SIZE));
+		return random;
+	}
+	
+	private static SecureRandom newGenerator() {
+		try {
+			return SecureRandom.getInstance("DRBG");
+		} catch (NoSuchAlgorithmException e) {
+			// DRBG is available from java 9 onwards.
+		}
+		
+		try {
+			return SecureRandom.getInstance("SHA1PRNG");
+		} catch (NoSuchAlgorithmException e) {
+			throw new InternalError("No SecureRandom algorithm available; check your JVM security settings, they may have been restricted");
+		}
+	}
+	
+	private Stripe stripe() {
+		return stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
 	}
 	
 	/**
@@ -33,13 +127,63 @@ public final class Crypto {
 	 * @return {@code length} random characters.
 	 */
 	public String generate(String alphabet, int length) {
+		int size = alphabet.length();
+		if (size == 0 || size > 256) throw new IllegalArgumentException("alphabet must have between 1 and 256 characters");
+		
+		// SECURITY NOTE: Simply taking 'randomByte % size' would make the first '256 % size' characters of the alphabet more likely than the others.
+		// Instead, random bytes at or above the largest multiple of 'size' are thrown away, and a new byte is drawn.
+		int limit = 256 - (256 % size);
 		char[] out = new char[length];
-		for (int i = 0; i < length; i++) {
-			out[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+		Stripe stripe = stripe();
+		synchronized (stripe) {
+			for (int i = 0; i < length; i++) {
+				int b;
+				do {
+					b = stripe.nextByte();
+				} while (b >= limit);
+				out[i] = alphabet.charAt(b % size);
+			}
 		}
 		return new String(out);
 	}
 	
+	/**
+	 * Generates {@code length} random bytes, for example to serve as a key for {@link #hmac(byte[], byte[]...)}.
+	 * 
+	 * @param length The amount of random bytes to generate.
+	 * @return A new array with {@code length} random bytes.
+	 */
+	public byte[] generateBytes(int length) {
+		byte[] out = new byte[length];
+		Stripe stripe = stripe();
+		synchronized (stripe) {
+			for (int i = 0; i < length; i++) out[i] = (byte) stripe.nextByte();
+		}
+		return out;
+	}
+	
+	/**
+	 * Calculates a keyed hash (HMAC-SHA256) over all {@code parts}. Each part is length-prefixed, so that {@code "ab", "c"} and {@code "a", "bc"} produce different results.
+	 * 
+	 * @param key A secret key, such as one generated with {@link #generateBytes(int)}.
+	 * @param parts The data to hash.
+	 * @return 32 bytes; knowing this value (even when also knowing the parts) does not reveal the key.
+	 */
+	public byte[] hmac(byte[] key, byte[]... parts) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			for (byte[] part : parts) {
+				int len = part.length;
+				mac.update(new byte[] {(byte) (len >>> 24), (byte) (len >>> 16), (byte) (len >>> 8), (byte) len});
+				mac.update(part);
+			}
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new InternalError("HmacSHA256 algorithm is not available; check your JVM security settings, they may have been restricted");
+		}
+	}
+	
 	/**
 	 * Hashes a provided password into a string you should store someplace; a password can later be verified with this string.
 	 * 
@@ -49,8 +193,7 @@ public final class Crypto {
 	 * @return A string which can later be used (with {@link #verifyPassword(String, char[])}) to verify a user entered this password.
 	 */
 	public String hashPassword(char[] password) {
-		byte[] salt = new byte[16];
-		random.nextBytes(salt);
+		byte[] salt = generateBytes(16);
 		return BCrypt.generate(password, salt, 10);
 	}
 	
@@ -62,6 +205,20 @@ public final class Crypto {
 	 * @param password The password, as entered by a user trying to confirm their identity.
 	 */
 	public boolean verifyPassword(String hash, char[] password) {
-		return BCrypt.checkPassword(hash, password);
+		long start = System.nanoTime();
+		try {
+			return BCrypt.checkPassword(hash, password);
+		} finally {
+			passwordChecks.incrementAndGet();
+			passwordCheckNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Returns how long a call to {@link #verifyPassword(String, char[])} takes on average, in nanoseconds; 0 if there haven't been any yet.
+	 */
+	public long getAveragePasswordCheckNanos() {
+		long checks = passwordChecks.get();
+		return checks == 0 ? 0L : passwordCheckNanos.get() / checks;
 	}
 }
@@ -0,0 +1,87 @@
+package org.projectlombok.security.totpexample;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries a one-off message (such as 'wrong password') across a redirect, without storing anything on the server.
+ * 
+ * The message and an expiry time are put in the URL itself as a token ({@code ?f=...}), signed with a key only the server knows. A failed login thus costs nothing
+ * beyond the redirect; previously every error created a session just to hold one string.
+ * <p>
+ * SECURITY NOTE: The signature is what makes this safe. Without it, anybody could craft a link to your login page showing a message of their choosing
+ * ('Your account is locked; call this number...'). Tokens are signed, not encrypted: only put messages in here that you'd show the user anyway.
+ * <p>
+ * <em>NB: </em>The key is generated at startup, so pending messages are dropped when the server restarts; the user just doesn't see the message.
+ */
+public final class FlashMessages {
+	public static final String PARAMETER = "f";
+	private static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(5);
+	private static final int MAC_LENGTH = 16;
+	
+	private final Crypto crypto;
+	private final byte[] key;
+	private final long ttl;
+	
+	public FlashMessages(Crypto crypto) {
+		this(crypto, DEFAULT_TIME_TO_LIVE);
+	}
+	
+	/**
+	 * @param ttl For how many milliseconds a message remains showable.
+	 */
+	public FlashMessages(Crypto crypto, long ttl) {
+		if (crypto == null) throw new NullPointerException("crypto");
+		this.crypto = crypto;
+		this.key = crypto.generateBytes(32);
+		this.ttl = ttl;
+	}
+	
+	/**
+	 * Returns {@code path} with the message added as a query parameter; send the user there with a redirect.
+	 */
+	public String redirectUrl(String path, String message) {
+		return path + (path.indexOf('?') == -1 ? '?' : '&') + PARAMETER + "=" + encode(message);
+	}
+	
+	/**
+	 * Turns a message into a token that can be passed to {@link #decode(String)} later.
+	 */
+	public String encode(String message) {
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		byte[] data = ByteBuffer.allocate(8 + text.length).putLong(System.currentTimeMillis() + ttl).put(text).array();
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		return encoder.encodeToString(data) + "." + encoder.encodeToString(mac(data));
+	}
+	
+	/**
+	 * Returns the message in the token, or the empty string if there is no token or it is forged, damaged, or expired.
+	 */
+	public String decode(String token) {
+		if (token == null) return "";
+		int dot = token.indexOf('.');
+		if (dot == -1) return "";
+		
+		byte[] data, mac;
+		try {
+			Base64.Decoder decoder = Base64.getUrlDecoder();
+			data = decoder.decode(token.substring(0, dot));
+			mac = decoder.decode(token.substring(dot + 1));
+		} catch (IllegalArgumentException e) {
+			return "";
+		}
+		
+		if (data.length < 8 || !MessageDigest.isEqual(mac, mac(data))) return "";
+		ByteBuffer in = ByteBuffer.wrap(data);
+		if (in.getLong() < System.currentTimeMillis()) return "";
+		return new String(data, 8, data.length - 8, StandardCharsets.UTF_8);
+	}
+	
+	private byte[] mac(byte[] data) {
+		return Arrays.copyOf(crypto.hmac(key, data), MAC_LENGTH);
+	}
+}
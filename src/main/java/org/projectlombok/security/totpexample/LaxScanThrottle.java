@@ -0,0 +1,135 @@
+package org.projectlombok.security.totpexample;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guards the 'lax' TOTP check, which scans every code up to 25 hours away from now (about 6000 HMAC calculations), against being used to eat all available CPU.
+ * 
+ * Any user may only run a limited number of lax scans at the same time, the entire server may only run a limited number at the same time (callers over that limit wait a short while in line),
+ * and all lax scans together may only spend so much CPU time within a rolling window. A scan that isn't allowed to run isn't run at all; the caller gets {@link Totp.TotpResult#TOO_BUSY}.
+ * <p>
+ * SECURITY NOTE: The normal TOTP check (which scans only a handful of codes) is never throttled by this class, so a burst of (possibly malicious) troubleshooters cannot degrade normal logins.
+ */
+public final class LaxScanThrottle {
+	private static final int BUDGET_BUCKETS = 10;
+	
+	private final int maxConcurrentPerUser;
+	private final long maxQueueWaitMillis;
+	private final long cpuBudgetNanos;
+	private final long bucketMillis;
+	private final Semaphore globalSlots;
+	private final ConcurrentMap<String, Integer> runningPerUser = new ConcurrentHashMap<>();
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final boolean cpuTimeSupported;
+	
+	// A ring of buckets, each covering 'bucketMillis' of time, which together form the rolling window. Guarded by 'this'.
+	private final long[] spentPerBucket = new long[BUDGET_BUCKETS];
+	private final long[] bucketStart = new long[BUDGET_BUCKETS];
+	
+	/**
+	 * Creates a throttle allowing 1 lax scan per user, 4 across the server (waiting at most 2 seconds for a turn), using at most 2 seconds of CPU time per 10 seconds.
+	 */
+	public LaxScanThrottle() {
+		this(1, 4, TimeUnit.SECONDS.toMillis(2), TimeUnit.SECONDS.toNanos(2), TimeUnit.SECONDS.toMillis(10));
+	}
+	
+	/**
+	 * @param maxConcurrentPerUser How many lax scans any single user may be running at the same time.
+	 * @param maxConcurrentGlobal How many lax scans may be running at the same time across the whole server.
+	 * @param maxQueueWaitMillis If the server is running {@code maxConcurrentGlobal} scans already, wait at most this long for one of them to finish before rejecting.
+	 * @param cpuBudgetNanos The total CPU time all lax scans together may spend within {@code budgetWindowMillis}.
+	 * @param budgetWindowMillis The size of the rolling window for {@code cpuBudgetNanos}.
+	 */
+	public LaxScanThrottle(int maxConcurrentPerUser, int maxConcurrentGlobal, long maxQueueWaitMillis, long cpuBudgetNanos, long budgetWindowMillis) {
+		if (maxConcurrentPerUser < 1) throw new IllegalArgumentException("maxConcurrentPerUser must be at least 1");
+		if (maxConcurrentGlobal < 1) throw new IllegalArgumentException("maxConcurrentGlobal must be at least 1");
+		if (budgetWindowMillis < BUDGET_BUCKETS) throw new IllegalArgumentException("budgetWindowMillis too small");
+		this.maxConcurrentPerUser = maxConcurrentPerUser;
+		this.maxQueueWaitMillis = maxQueueWaitMillis;
+		this.cpuBudgetNanos = cpuBudgetNanos;
+		this.bucketMillis = budgetWindowMillis / BUDGET_BUCKETS;
+		this.globalSlots = new Semaphore(maxConcurrentGlobal, true);
+		this.cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported();
+	}
+	
+	/**
+	 * Asks permission to run a lax scan on behalf of {@code username}. If this returns {@code true} you must call {@link #exit(String, long)} when done, with the result of
+	 * {@link #startMeasuring()} you called right after entering.
+	 * 
+	 * This call may block for a short while if the server is busy with other lax scans.
+	 * 
+	 * @return {@code true} if the scan may proceed; {@code false} if it should not be run at all.
+	 */
+	public boolean tryEnter(String username) {
+		boolean[] admitted = new boolean[1];
+		runningPerUser.compute(username, (k, running) -> {
+			int r = running == null ? 0 : running;
+			if (r >= maxConcurrentPerUser) return running;
+			admitted[0] = true;
+			return r + 1;
+		});
+		if (!admitted[0]) return false;
+		
+		boolean acquired = false;
+		try {
+			if (!withinBudget()) return false;
+			acquired = globalSlots.tryAcquire(maxQueueWaitMillis, TimeUnit.MILLISECONDS);
+			return acquired;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			if (!acquired) leaveUser(username);
+		}
+	}
+	
+	/**
+	 * Returns a marker for the CPU time spent by the current thread so far; pass it to {@link #exit(String, long)}.
+	 */
+	public long startMeasuring() {
+		return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+	
+	/**
+	 * Marks the end of a lax scan previously allowed by {@link #tryEnter(String)}; must be called on the same thread that called {@link #startMeasuring()}.
+	 */
+	public void exit(String username, long measurementStart) {
+		long spent = startMeasuring() - measurementStart;
+		try {
+			charge(Math.max(0L, spent));
+		} finally {
+			globalSlots.release();
+			leaveUser(username);
+		}
+	}
+	
+	private void leaveUser(String username) {
+		runningPerUser.computeIfPresent(username, (k, running) -> running <= 1 ? null : running - 1);
+	}
+	
+	private synchronized boolean withinBudget() {
+		long now = System.currentTimeMillis();
+		long total = 0L;
+		for (int i = 0; i < BUDGET_BUCKETS; i++) {
+			if (now - bucketStart[i] < bucketMillis * BUDGET_BUCKETS) total += spentPerBucket[i];
+		}
+		return total < cpuBudgetNanos;
+	}
+	
+	private synchronized void charge(long nanos) {
+		long now = System.currentTimeMillis();
+		long slot = now / bucketMillis;
+		int idx = (int) (slot % BUDGET_BUCKETS);
+		long start = slot * bucketMillis;
+		if (bucketStart[idx] != start) {
+			bucketStart[idx] = start;
+			spentPerBucket[idx] = 0L;
+		}
+		spentPerBucket[idx] += nanos;
+	}
+}
@@ -1,5 +1,7 @@
 package org.projectlombok.security.totpexample;
 
+import java.util.Map;
+
 /**
  * Represents short-lived 'mostly single use' sessions, to let servlets communicate securely through the user's browser.
  */
@@ -8,6 +10,7 @@ public interface Session {
 	 * Returns the session key.
 	 * 
 	 * @return The session key; this session object can be recreated by passing the key to the session store.
+	 *     Some stores put the values themselves in the key, in which case it changes with every {@code put}; so get the key after storing values, not before.
 	 */
 	String getSessionKey();
 	
@@ -19,6 +22,13 @@ public interface Session {
 	 */
 	Session put(String key, String value);
 	
+	/**
+	 * Store many key/value pairs in this session at once; this is equivalent to calling {@link #put(String, String)} for each entry, but cheaper.
+	 * 
+	 * @param values The key/value pairs to store; the same rules apply to these keys and values as for {@link #put(String, String)}.
+	 */
+	Session putAll(Map<String, String> values);
+	
 	/**
 	 * Retrieve the value that goes with the provided key.
 	 * 
@@ -26,4 +36,11 @@ public interface Session {
 	 * @param defaultValue The value to return when the key is not in this session.
 	 */
 	String getOrDefault(String key, String defaultValue);
+	
+	/**
+	 * Retrieve all key/value pairs stored in this session at once; use this instead of multiple {@link #getOrDefault(String, String)} calls when you need more than one value.
+	 * 
+	 * @return An unmodifiable map with the contents of this session at the time of the call.
+	 */
+	Map<String, String> snapshot();
 }
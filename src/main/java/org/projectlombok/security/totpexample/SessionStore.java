@@ -1,5 +1,7 @@
 package org.projectlombok.security.totpexample;
 
+import java.util.Map;
+
 /**
  * Represents a short-lived session store, used to communicate pertinent data from one page load to another.
  * 
@@ -14,6 +16,19 @@ public interface SessionStore {
 	 */
 	Session create(long ttl) throws SessionStoreException;
 	
+	/**
+	 * Creates sessions in the session store, on behalf of {@code source}.
+	 * 
+	 * Stores that limit how many sessions any one party can have (see {@code BoundedSessionStore}) use the source to tell parties apart; all others just ignore it.
+	 * 
+	 * @param ttl Time-to-live; a session expires automatically after this many milliseconds.
+	 * @param source Who this session is created for, such as the remote IP address of the request; {@code null} if unknown.
+	 * @throws SessionStoreException If the session store is corrupt.
+	 */
+	default Session create(long ttl, String source) throws SessionStoreException {
+		return create(ttl);
+	}
+	
 	/**
 	 * Fetches sessions from the session store.
 	 * 
@@ -22,4 +37,21 @@ public interface SessionStore {
 	 * @throws SessionStoreException If the session store is corrupt.
 	 */
 	Session get(String sessionKey) throws SessionStoreException, NoSuchSessionException;
+	
+	/**
+	 * Fetches all values of a session and deletes it, in one atomic step: of any number of concurrent calls for the same session, only one succeeds.
+	 * Use this when a process (such as a login) is done with its session, so that the session can't be used again, and the store only holds sessions of processes still in progress.
+	 * 
+	 * @return An unmodifiable map with the contents of the session.
+	 * @throws NoSuchSessionException If this session doesn't exist, has expired, or was already invalidated.
+	 * @throws SessionStoreException If the session store is corrupt.
+	 */
+	Map<String, String> getAndInvalidate(String sessionKey) throws SessionStoreException, NoSuchSessionException;
+	
+	/**
+	 * Deletes a session; does nothing if it doesn't exist (anymore).
+	 * 
+	 * @throws SessionStoreException If the session store is corrupt.
+	 */
+	void invalidate(String sessionKey) throws SessionStoreException;
 }
@@ -7,7 +7,9 @@ import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import javax.crypto.Mac;
@@ -27,7 +29,6 @@ public final class Totp {
 	// this should cover every timezone mismatch and a considerable amount of misconfigured clocks.
 	private static final int ALLOWED_CLOCKSKEW_LAX = (int) TimeUnit.HOURS.toSeconds(25) * 2;
 	
-	private static final String BASE32CHARS = "abcdefghijklmnopqrstuvwxyz234567";
 	private static final long SETUP_PROCEDURE_TTL = TimeUnit.HOURS.toMillis(1);
 	
 	/**
@@ -64,7 +65,10 @@ public final class Totp {
 		CLOCK_MISMATCH,
 		CODE_VERIFICATION_FAILURE,
 		CODE_ALREADY_USED,
-		INVALID_INPUT;
+		INVALID_INPUT,
+		
+		/** The code could not be checked right now because too many expensive checks are running; the user should try again in a little while. */
+		TOO_BUSY;
 	}
 	
 	/**
@@ -147,6 +151,7 @@ public final class Totp {
 			case CODE_ALREADY_USED: return "Code already used.";
 			case CODE_VERIFICATION_FAILURE: return "Incorrect code.";
 			case INVALID_INPUT: return "Invalid input.";
+			case TOO_BUSY: return "Too busy; try again later.";
 			default: return "Unexpected enum type: " + result;
 			}
 		}
@@ -155,37 +160,52 @@ public final class Totp {
 	private final UserStore users;
 	private final SessionStore sessions;
 	private final Crypto crypto;
+	private final LaxScanThrottle laxScans;
 	
 	public Totp(UserStore users, SessionStore sessions, Crypto crypto) {
+		this(users, sessions, crypto, new LaxScanThrottle());
+	}
+	
+	public Totp(UserStore users, SessionStore sessions, Crypto crypto, LaxScanThrottle laxScans) {
 		this.users = users;
 		this.sessions = sessions;
 		this.crypto = crypto;
+		this.laxScans = laxScans;
 	}
 	
 	/**
 	 * Generates a new TOTP key pair for the given user.
 	 */
 	public Session startSetupTotp(String username, String applicationName) {
-		String secret = crypto.generate(BASE32CHARS, 16);
-		Session session = sessions.create(SETUP_PROCEDURE_TTL);
+		return startSetupTotp(username, applicationName, Collections.<String, String>emptyMap(), null);
+	}
+	
+	/**
+	 * Generates a new TOTP key pair for the given user, storing {@code extraValues} in the same session (in one go, along with the TOTP data).
+	 * 
+	 * @param source Who is signing up, such as the remote IP address of the request; see {@link SessionStore#create(long, String)}.
+	 */
+	public Session startSetupTotp(String username, String applicationName, Map<String, String> extraValues, String source) {
+		String secret = crypto.generate(Base32.CHARS, 16);
+		Session session = sessions.create(SETUP_PROCEDURE_TTL, source);
 		String uri = toUri(username, applicationName, secret);
-		session.put(SESSIONKEY_SECRET, secret);
-		session.put(SESSIONKEY_URI, uri);
-		session.put(SESSIONKEY_USERNAME, username);
+		Map<String, String> values = new HashMap<>(extraValues);
+		values.put(SESSIONKEY_SECRET, secret);
+		values.put(SESSIONKEY_URI, uri);
+		values.put(SESSIONKEY_USERNAME, username);
+		session.putAll(values);
 		return session;
 	}
 	
 	public CodeVerification finishSetupTotp(Session session, String verificationCode) {
 		if (session == null) throw new SessionNotFoundException("Session expired / nonexistent");
-		String secret = session.getOrDefault(SESSIONKEY_SECRET, null);
-		String username = session.getOrDefault(SESSIONKEY_USERNAME, null);
-		if (secret == null || username == null) throw new TotpException("TOTP setup process not started");
-		CodeVerification result = verifyCodeLax(secret, Collections.singletonList(verificationCode), 0L);
-		if (result.result == TotpResult.SUCCESS) {
-			// TODO review all these session.getOrDefaults; I'd really just rather do a getAndItNeedsToBeThere kind of call here. It should be, but bad stuff happens if this password isn't in here.
-			String password = session.getOrDefault("password", null);
-			users.createUserWithTotp(username, password.toCharArray(), secret, result.tick - 1);
-		}
+		Map<String, String> values = session.snapshot();
+		String secret = values.get(SESSIONKEY_SECRET);
+		String username = values.get(SESSIONKEY_USERNAME);
+		String password = values.get("password");
+		if (secret == null || username == null || password == null) throw new TotpException("TOTP setup process not started");
+		CodeVerification result = throttledVerifyCodeLax(username, secret, Collections.singletonList(verificationCode), 0L);
+		if (result.result == TotpResult.SUCCESS) users.createUserWithTotp(username, password.toCharArray(), secret, result.tick - 1);
 		return result;
 	}
 	
@@ -206,7 +226,9 @@ public final class Totp {
 		if (userData.isLockedOut()) return new CodeVerification(TotpResult.ALREADY_LOCKED_OUT, 0L, 0L);
 		CodeVerification result = verifyCode(userData.getSecret(), verificationCode, userData.getLastSuccessfulTick());
 		if (result.result == TotpResult.SUCCESS) {
-			users.updateLastSuccessfulTick(username, result.tick);
+			// SECURITY NOTE: The check in verifyCode used the last tick as it was when we read it; another login with the same code may have been accepted since.
+			// Only the conditional write below decides which login gets to use the code.
+			if (!users.advanceLastSuccessfulTick(username, result.tick)) return new CodeVerification(TotpResult.CODE_ALREADY_USED, result.tick, result.clockskew);
 			return result;
 		}
 		
@@ -229,7 +251,7 @@ public final class Totp {
 		
 		String username = session.getOrDefault("username", null);
 		TotpData userData = users.getTotpData(username);
-		CodeVerification result = verifyCodeLax(userData.getSecret(), verificationCodes, userData.getLastSuccessfulTick());
+		CodeVerification result = throttledVerifyCodeLax(username, userData.getSecret(), verificationCodes, userData.getLastSuccessfulTick());
 		if (result.result == TotpResult.SUCCESS) {
 			users.clearLockedOut(username);
 			// The user just entered multiple codes;
@@ -259,7 +281,7 @@ public final class Totp {
 			return new CodeVerification(TotpResult.INVALID_INPUT, 0L, 0L);
 		}
 		
-		byte[] secretBytes = toBytes(secret);
+		byte[] secretBytes = Base32.decode(secret);
 		long tick = System.currentTimeMillis() / KEY_VALIDATION_WINDOW;
 		
 		for (int i = 0; i <= (ALLOWED_CLOCKSKEW * 2); i++) {
@@ -287,8 +309,21 @@ public final class Totp {
 		return true;
 	}
 	
+	/**
+	 * The lax scan costs thousands of HMAC calculations, and the troubleshooting form can be submitted over and over; without limits this is a cheap way to eat all CPU.
+	 */
+	private CodeVerification throttledVerifyCodeLax(String username, String secret, Collection<String> verificationCodes, long lastSuccessfulTick) {
+		if (!laxScans.tryEnter(username)) return new CodeVerification(TotpResult.TOO_BUSY, 0L, 0L);
+		long measurement = laxScans.startMeasuring();
+		try {
+			return verifyCodeLax(secret, verificationCodes, lastSuccessfulTick);
+		} finally {
+			laxScans.exit(username, measurement);
+		}
+	}
+	
 	private CodeVerification verifyCodeLax(String secret, Collection<String> verificationCodes, long lastSuccessfulTick) {
-		byte[] secretBytes = toBytes(secret);
+		byte[] secretBytes = Base32.decode(secret);
 		long tick = System.currentTimeMillis() / KEY_VALIDATION_WINDOW;
 		
 		for (String code : verificationCodes) {
@@ -374,23 +409,4 @@ public final class Totp {
 		}
 		return bytes;
 	}
-	
-	private static byte[] toBytes(String secret) {
-		byte[] result = new byte[10];
-		decode32(secret, result, 0, 0);
-		decode32(secret, result, 8, 5);
-		return result;
-	}
-	
-	private static void decode32(String secret, byte[] bytes, int secretOffset, int byteOffset) {
-		int[] values = new int[8];
-		for (int i = 0; i < 8; i++) {
-			values[i] = BASE32CHARS.indexOf(secret.charAt(i + secretOffset));
-		}
-		bytes[0 + byteOffset] = (byte) ((((values[0] & 0x1f) << 3) | ((values[1] & 0x1c) >> 2)) & 0xff);
-		bytes[1 + byteOffset] = (byte) ((((values[1] & 0x03) << 6) | ((values[2] & 0x1f) << 1) | ((values[3] & 0x10) >> 4)) & 0xff);
-		bytes[2 + byteOffset] = (byte) ((((values[3] & 0x0f) << 4) | ((values[4] & 0x1e) >> 1)) & 0xff);
-		bytes[3 + byteOffset] = (byte) ((((values[4] & 0x01) << 7) | ((values[5] & 0x1f) << 2) | ((values[6] & 0x18) >> 3)) & 0xff);
-		bytes[4 + byteOffset] = (byte) ((((values[6] & 0x07) << 5) | (values[7] & 0x1f)) & 0xff);
-	}
 }
@@ -8,6 +8,68 @@ import org.projectlombok.security.totpexample.Totp.TotpData;
  * Generally implemented in the form of database queries.
  */
 public interface UserStore {
+	/**
+	 * A long lived session as found by {@link UserStore#findLongLivedSession(String)}.
+	 */
+	final class LongLivedSession {
+		private final String username;
+		private final long expiresAt;
+		private final int epoch;
+		
+		public LongLivedSession(String username, long expiresAt, int epoch) {
+			this.username = username;
+			this.expiresAt = expiresAt;
+			this.epoch = epoch;
+		}
+		
+		public String getUsername() {
+			return username;
+		}
+		
+		/**
+		 * Returns the generation of the user's sessions this session belongs to. Destroying a session moves the user on to the next generation,
+		 * which ends all sessions of earlier generations at once.
+		 */
+		public int getEpoch() {
+			return epoch;
+		}
+		
+		/** Returns when this session expires, in milliseconds since the epoch. */
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+	}
+	
+	/**
+	 * Everything needed to log a user in, as loaded by {@link UserStore#loadLoginContext(String)}.
+	 * 
+	 * SECURITY NOTE: This includes the user's password hash and TOTP secret; pass it to {@link UserStore#verifyPassword(LoginContext, char[])} and never log or show it.
+	 */
+	final class LoginContext {
+		private final String username;
+		private final String passwordHash;
+		private final TotpData totpData;
+		
+		public LoginContext(String username, String passwordHash, TotpData totpData) {
+			this.username = username;
+			this.passwordHash = passwordHash;
+			this.totpData = totpData;
+		}
+		
+		public String getUsername() {
+			return username;
+		}
+		
+		public String getPasswordHash() {
+			return passwordHash;
+		}
+		
+		/** Returns the user's TOTP data, or {@code null} if they haven't enabled TOTP. */
+		public TotpData getTotpData() {
+			return totpData;
+		}
+	}
+	
 	/**
 	 * Enable TOTP for this user.
 	 * 
@@ -35,6 +97,15 @@ public interface UserStore {
 	 */
 	void updateLastSuccessfulTick(String username, long lastSuccessfulTick);
 	
+	/**
+	 * Atomically sets the last successful tick of this user to {@code tick}, but only if it is currently lower than {@code tick} and the user isn't locked out.
+	 * 
+	 * This is what makes TOTP codes single use: of 2 logins using the same code at the same moment (even on different servers), only one gets {@code true}.
+	 * 
+	 * @return {@code true} if the tick was advanced; {@code false} if a code for this tick (or a later one) was already accepted, or the user is locked out.
+	 */
+	boolean advanceLastSuccessfulTick(String username, long tick);
+	
 	/**
 	 * Update the TOTP data for this user, marking the user as locked out (they have to go through a troubleshooting step to re-enable their account).
 	 */
@@ -65,16 +136,39 @@ public interface UserStore {
 	 */
 	boolean verifyPassword(String username, char[] password);
 	
+	/**
+	 * Loads everything about a user that's needed to log them in, in one go.
+	 * 
+	 * @return The login context, or {@code null} if the user does not exist.
+	 */
+	LoginContext loadLoginContext(String username);
+	
+	/**
+	 * Verify if the provided password is the password of the user in this login context. This does not access the underlying storage (and thus holds no database connection)
+	 * while the (intentionally slow) password hash runs.
+	 */
+	boolean verifyPassword(LoginContext context, char[] password);
+	
 	/** Return a long lived session id, generally intended to be stored via a cookie. */
 	String createNewLongLivedSession(String username);
 	
 	/**
-	 * Destroy a long lived session created earlier with {@link #createNewLongLivedSession(String)}.
+	 * Destroy a long lived session created earlier with {@link #createNewLongLivedSession(String)}, along with every other long lived session of the same user
+	 * (logging them out on all devices). This works for sessions that have expired too.
+	 * 
+	 * @return The user whose sessions were destroyed, or {@code null} if {@code sessionId} isn't the key of any session.
 	 */
-	void destroyLongLivedSession(String sessionId);
+	String destroyLongLivedSession(String sessionId);
 	
 	/**
 	 * Find a long lived session created earlier with {@link #createNewLongLivedSession(String)}.
 	 */
 	String getUserFromSessionKey(String sessionKey);
+	
+	/**
+	 * Find a long lived session created earlier with {@link #createNewLongLivedSession(String)}, along with when it expires.
+	 * 
+	 * @return The session, or {@code null} if there is no such session or it has expired.
+	 */
+	LongLivedSession findLongLivedSession(String sessionKey);
 }
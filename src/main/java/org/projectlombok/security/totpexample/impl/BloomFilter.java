@@ -0,0 +1,93 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.projectlombok.security.totpexample.Crypto;
+
+/**
+ * A set of strings that can answer 'definitely not in here' without storing the strings themselves; it can also answer 'maybe in here' for strings that were never added.
+ * 
+ * Each string sets a few bits, picked by hashing it; a string whose bits aren't all set was never added. Strings can't be removed; the filter is rebuilt from scratch on startup instead.
+ * <p>
+ * SECURITY NOTE: The bits are picked with a keyed hash (the key is generated at startup), so nobody can craft strings that all land on the same bits to drive up the rate of 'maybe' answers.
+ */
+final class BloomFilter {
+	private final Crypto crypto;
+	private final byte[] key;
+	private final AtomicLongArray bits;
+	private final int bitCount;
+	private final int hashCount;
+	private final AtomicLong added = new AtomicLong();
+	
+	/**
+	 * @param expectedSize How many strings the filter should hold; beyond that it answers 'maybe' more and more often.
+	 * @param falsePositiveRate How often a string that was never added may get a 'maybe' answer, at {@code expectedSize} strings.
+	 */
+	BloomFilter(Crypto crypto, int expectedSize, double falsePositiveRate) {
+		this.crypto = crypto;
+		this.key = crypto.generateBytes(32);
+		long bits = (long) Math.ceil(-expectedSize * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		this.bitCount = (int) Math.max(64, Math.min(bits, Integer.MAX_VALUE - 63));
+		this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedSize * Math.log(2)));
+		this.bits = new AtomicLongArray((bitCount + 63) / 64);
+	}
+	
+	void add(String value) {
+		ByteBuffer hash = hash(value);
+		long h1 = hash.getLong();
+		long h2 = hash.getLong();
+		for (int i = 0; i < hashCount; i++) {
+			int bit = index(h1 + i * h2);
+			long mask = 1L << (bit & 63);
+			int word = bit >>> 6;
+			long old;
+			do {
+				old = bits.get(word);
+				if ((old & mask) != 0) break;
+			} while (!bits.compareAndSet(word, old, old | mask));
+		}
+		added.incrementAndGet();
+	}
+	
+	/**
+	 * Returns {@code false} if {@code value} was definitely never added, and {@code true} if it may have been.
+	 */
+	boolean mightContain(String value) {
+		ByteBuffer hash = hash(value);
+		long h1 = hash.getLong();
+		long h2 = hash.getLong();
+		for (int i = 0; i < hashCount; i++) {
+			int bit = index(h1 + i * h2);
+			if ((bits.get(bit >>> 6) & (1L << (bit & 63))) == 0) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * The chance that a string that was never added gets a 'maybe' answer right now, estimated from how many bits are set.
+	 */
+	double getFalsePositiveRate() {
+		long set = 0;
+		for (int i = 0; i < bits.length(); i++) set += Long.bitCount(bits.get(i));
+		return Math.pow((double) set / bitCount, hashCount);
+	}
+	
+	long getSizeInBytes() {
+		return bits.length() * 8L;
+	}
+	
+	long getAddedCount() {
+		return added.get();
+	}
+	
+	private ByteBuffer hash(String value) {
+		return ByteBuffer.wrap(crypto.hmac(key, value.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	private int index(long hash) {
+		return (int) ((hash & Long.MAX_VALUE) % bitCount);
+	}
+}
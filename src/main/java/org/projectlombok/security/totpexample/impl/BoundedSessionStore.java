@@ -0,0 +1,268 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.projectlombok.security.totpexample.Session;
+import org.projectlombok.security.totpexample.SessionStore;
+
+/**
+ * Wraps another {@code SessionStore} to put a cap on the number of live sessions, both per source (generally, the IP address of whoever caused the session to be created)
+ * and in total, and optionally on the total size of what's stored in them. Creating sessions doesn't require logging in (signing up does it, for example),
+ * so without caps anybody could grow the session store without bound.
+ * <p>
+ * When a cap is reached, the oldest session is evicted (invalidated) to make room: the oldest session of that same source if the per-source cap is hit, the oldest of all otherwise.
+ * This keeps storage flat under abuse, and mostly hurts the abuser: a legitimate user rarely has more than one or two sessions going at once.
+ * <p>
+ * The size of a session is counted as the UTF-8 length of every key and value ever stored in it through this wrapper; a value that replaces another is counted again, so this overestimates a bit.
+ * A byte budget is only needed for stores where sessions take up as much space as their contents (the database and in-memory stores). A {@link MappedFileSessionStore}
+ * has room for a fixed number of sessions of a fixed size each, so for that store the session cap already is a byte budget.
+ * <p>
+ * <em>NB: </em>Only sessions created through this wrapper since startup are counted; sessions of a persistent store that were created before a restart simply expire as usual.
+ * <p>
+ * <em>NB: </em>This only makes sense for stores that actually store sessions; it is pointless around a {@link SealedSessionStore}, whose session keys change on every {@code put}.
+ */
+public class BoundedSessionStore implements SessionStore {
+	private final SessionStore delegate;
+	private final int maxSessions;
+	private final int maxSessionsPerSource;
+	private final long maxBytes;
+	
+	// All guarded by 'this'. 'live' iterates in creation order, so its first entry is always the oldest session; 'byExpiry' starts with the session that expires first.
+	private final LinkedHashMap<String, Tracked> live = new LinkedHashMap<>();
+	private final TreeSet<Tracked> byExpiry = new TreeSet<>(Comparator.comparingLong((Tracked t) -> t.expiresAt).thenComparingLong(t -> t.sequence));
+	private final Map<String, ArrayDeque<Tracked>> perSource = new HashMap<>();
+	private long nextSequence;
+	private long bytes;
+	
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong sourceEvictions = new AtomicLong();
+	
+	private static final class Tracked {
+		final String sessionKey;
+		final String source;
+		final long expiresAt;
+		final long sequence;
+		long bytes;
+		
+		Tracked(String sessionKey, String source, long expiresAt, long sequence) {
+			this.sessionKey = sessionKey;
+			this.source = source;
+			this.expiresAt = expiresAt;
+			this.sequence = sequence;
+		}
+	}
+	
+	/**
+	 * Creates a store with caps on the number of sessions only.
+	 * 
+	 * @param maxSessions The maximum number of live sessions in total.
+	 * @param maxSessionsPerSource The maximum number of live sessions created on behalf of any single source.
+	 */
+	public BoundedSessionStore(SessionStore delegate, int maxSessions, int maxSessionsPerSource) {
+		this(delegate, maxSessions, maxSessionsPerSource, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * @param maxSessions The maximum number of live sessions in total.
+	 * @param maxSessionsPerSource The maximum number of live sessions created on behalf of any single source.
+	 * @param maxBytes The maximum total size of the keys and values stored in all live sessions together; {@code Long.MAX_VALUE} for no limit.
+	 */
+	public BoundedSessionStore(SessionStore delegate, int maxSessions, int maxSessionsPerSource, long maxBytes) {
+		if (delegate == null) throw new NullPointerException("delegate");
+		if (maxSessions < 1 || maxSessionsPerSource < 1 || maxBytes < 1) throw new IllegalArgumentException("limits must be at least 1");
+		this.delegate = delegate;
+		this.maxSessions = maxSessions;
+		this.maxSessionsPerSource = maxSessionsPerSource;
+		this.maxBytes = maxBytes;
+	}
+	
+	@Override public Session create(long ttl) {
+		return create(ttl, null);
+	}
+	
+	@Override public Session create(long ttl, String source) {
+		ArrayDeque<String> toEvict = new ArrayDeque<>();
+		synchronized (this) {
+			dropExpired();
+			ArrayDeque<Tracked> ofSource = source == null ? null : perSource.get(source);
+			while (ofSource != null && ofSource.size() >= maxSessionsPerSource) {
+				Tracked oldest = ofSource.peekFirst();
+				untrack(oldest);
+				toEvict.add(oldest.sessionKey);
+				sourceEvictions.incrementAndGet();
+			}
+			while (live.size() >= maxSessions) {
+				Tracked oldest = live.values().iterator().next();
+				untrack(oldest);
+				toEvict.add(oldest.sessionKey);
+				evictions.incrementAndGet();
+			}
+		}
+		
+		// Talk to the underlying store outside the lock.
+		for (String sessionKey : toEvict) delegate.invalidate(sessionKey);
+		
+		Session session = delegate.create(ttl, source);
+		synchronized (this) {
+			Tracked tracked = new Tracked(session.getSessionKey(), source, System.currentTimeMillis() + ttl, nextSequence++);
+			live.put(tracked.sessionKey, tracked);
+			byExpiry.add(tracked);
+			if (source != null) perSource.computeIfAbsent(source, k -> new ArrayDeque<>()).addLast(tracked);
+		}
+		return counted(session);
+	}
+	
+	@Override public Session get(String sessionKey) {
+		return counted(delegate.get(sessionKey));
+	}
+	
+	@Override public Map<String, String> getAndInvalidate(String sessionKey) {
+		forget(sessionKey);
+		return delegate.getAndInvalidate(sessionKey);
+	}
+	
+	@Override public void invalidate(String sessionKey) {
+		forget(sessionKey);
+		delegate.invalidate(sessionKey);
+	}
+	
+	/**
+	 * Returns the number of live sessions (sessions that have expired may be included until the next {@code create} call).
+	 */
+	public synchronized int size() {
+		return live.size();
+	}
+	
+	/**
+	 * Returns the total size of the keys and values stored in live sessions, as counted against the byte budget; always 0 if there is no byte budget.
+	 */
+	public synchronized long getByteCount() {
+		return bytes;
+	}
+	
+	/**
+	 * The number of sessions evicted because the total cap (on sessions, or on bytes) was reached.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+	
+	/**
+	 * The number of sessions evicted because their source reached its cap.
+	 */
+	public long getSourceEvictionCount() {
+		return sourceEvictions.get();
+	}
+	
+	private Session counted(Session session) {
+		// Without a byte budget, there is nothing to count.
+		return maxBytes == Long.MAX_VALUE ? session : new CountedSession(session);
+	}
+	
+	/**
+	 * Adds {@code size} bytes to the session, then evicts the oldest other sessions until the total fits the byte budget again.
+	 */
+	private void stored(String sessionKey, long size) {
+		ArrayDeque<String> toEvict = new ArrayDeque<>();
+		synchronized (this) {
+			Tracked tracked = live.get(sessionKey);
+			if (tracked == null) return;
+			tracked.bytes += size;
+			bytes += size;
+			dropExpired();
+			Iterator<Tracked> it = live.values().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				Tracked oldest = it.next();
+				if (oldest == tracked) continue;
+				it.remove();
+				removeFromIndexes(oldest);
+				toEvict.add(oldest.sessionKey);
+				evictions.incrementAndGet();
+			}
+		}
+		
+		for (String key : toEvict) delegate.invalidate(key);
+	}
+	
+	private synchronized void forget(String sessionKey) {
+		Tracked tracked = sessionKey == null ? null : live.get(sessionKey);
+		if (tracked != null) untrack(tracked);
+	}
+	
+	/**
+	 * Sessions are created with different TTLs (a signup lasts much longer than a login), so the oldest session isn't necessarily the first to expire; expiry order is kept separately.
+	 */
+	private void dropExpired() {
+		long now = System.currentTimeMillis();
+		while (!byExpiry.isEmpty() && byExpiry.first().expiresAt < now) untrack(byExpiry.first());
+	}
+	
+	private void untrack(Tracked tracked) {
+		live.remove(tracked.sessionKey);
+		removeFromIndexes(tracked);
+	}
+	
+	private void removeFromIndexes(Tracked tracked) {
+		byExpiry.remove(tracked);
+		bytes -= tracked.bytes;
+		if (tracked.source == null) return;
+		ArrayDeque<Tracked> ofSource = perSource.get(tracked.source);
+		if (ofSource == null) return;
+		ofSource.remove(tracked);
+		if (ofSource.isEmpty()) perSource.remove(tracked.source);
+	}
+	
+	private static long utf8Length(String s) {
+		long length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			// A surrogate pair is 4 bytes in UTF-8; counting 2 for each half adds up to that.
+			length += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+		}
+		return length;
+	}
+	
+	/**
+	 * Passes everything on to the underlying session, counting the size of what is stored against the byte budget.
+	 */
+	private final class CountedSession implements Session {
+		private final Session session;
+		
+		CountedSession(Session session) {
+			this.session = session;
+		}
+		
+		@Override public String getSessionKey() {
+			return session.getSessionKey();
+		}
+		
+		@Override public Session put(String key, String value) {
+			session.put(key, value);
+			stored(session.getSessionKey(), utf8Length(key) + utf8Length(value));
+			return this;
+		}
+		
+		@Override public Session putAll(Map<String, String> values) {
+			session.putAll(values);
+			long size = 0;
+			for (Map.Entry<String, String> e : values.entrySet()) size += utf8Length(e.getKey()) + utf8Length(e.getValue());
+			stored(session.getSessionKey(), size);
+			return this;
+		}
+		
+		@Override public String getOrDefault(String key, String defaultValue) {
+			return session.getOrDefault(key, defaultValue);
+		}
+		
+		@Override public Map<String, String> snapshot() {
+			return session.snapshot();
+		}
+	}
+}
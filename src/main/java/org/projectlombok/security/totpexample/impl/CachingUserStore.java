@@ -0,0 +1,304 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.projectlombok.security.totpexample.Totp.TotpData;
+import org.projectlombok.security.totpexample.UserStore;
+
+/**
+ * Wraps any other {@code UserStore} to cache the TOTP data of users, which usernames exist, and which user a long lived session belongs to.
+ * 
+ * A single login reads the TOTP data of the user several times (when the password is checked, when the code is checked, and again every time the code entry page is shown),
+ * and every signup and login checks whether the username exists. With this cache only the first of those reads goes to the underlying store.
+ * <p>
+ * Every page view of a logged in user looks up their long lived session; those lookups are cached too, including lookups of session keys that don't exist (say, an old cookie
+ * that keeps being sent), which are kept in a separate, smaller cache so that made up keys can't push real sessions out. Each cached session is only used while its epoch matches the user's cached session epoch; destroying a session
+ * forgets that user's epoch, so none of their cached sessions is used again without being checked against the underlying store, however many there are.
+ * <p>
+ * Every write that goes through this store also removes the affected user from the cache (the write goes to the underlying store first, so the next read sees it).
+ * Entries also expire after a short TTL, and only a bounded number of users is cached; the least recently used ones make way.
+ * <p>
+ * SECURITY NOTE: The TOTP data includes the last tick a code was accepted for and whether the user is locked out; stale values could let a code be used twice, or a locked out user in.
+ * That can't happen as long as all writes go through this same instance. If you run multiple servers against the same user database, they don't see each other's writes:
+ * don't use this cache there, or keep the TTL very short and make the underlying store re-check the critical conditions when writing.
+ */
+public class CachingUserStore implements UserStore {
+	private final UserStore delegate;
+	private final Cache<TotpData> totpData;
+	private final Cache<Boolean> existingUsers;
+	private final Cache<LongLivedSession> sessions;
+	private final Cache<Boolean> unknownSessions;
+	private final Cache<Integer> sessionEpochs;
+	private final AtomicLong sessionHits = new AtomicLong();
+	private final AtomicLong sessionMisses = new AtomicLong();
+	
+	public CachingUserStore(UserStore delegate) {
+		this(delegate, 10000, TimeUnit.MINUTES.toMillis(1));
+	}
+	
+	/**
+	 * @param maxSize The maximum number of users to cache (for TOTP data, and separately for whether they exist).
+	 * @param ttl How long, in milliseconds, a cached value may be used at most.
+	 */
+	public CachingUserStore(UserStore delegate, int maxSize, long ttl) {
+		if (delegate == null) throw new NullPointerException("delegate");
+		this.delegate = delegate;
+		this.totpData = new Cache<>(maxSize, ttl);
+		this.existingUsers = new Cache<>(maxSize, ttl);
+		this.sessions = new Cache<>(maxSize, ttl);
+		this.unknownSessions = new Cache<>(Math.max(1, maxSize / 10), ttl);
+		this.sessionEpochs = new Cache<>(maxSize, ttl);
+	}
+	
+	private static final class Cached<V> {
+		final V value;
+		final long expiresAt;
+		
+		Cached(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	/**
+	 * A bounded, least-recently-used map of values that expire.
+	 * 
+	 * A value is only stored if its own key wasn't invalidated while it was being loaded; otherwise a load that started before a write could put the old value back in.
+	 * Each invalidation gets the next version number, and the cache remembers the version of the last invalidation of each key, for the most recent {@code maxSize} keys.
+	 * A load that started before the oldest of those has no way to tell, so its value isn't stored; that takes {@code maxSize} writes during a single load.
+	 */
+	private static final class Cache<V> {
+		private final long ttl;
+		private final Map<String, Cached<V>> entries;
+		private final Map<String, Long> invalidated;
+		private long version;
+		private long forgottenVersion;
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+		
+		Cache(int maxSize, long ttl) {
+			this.ttl = ttl;
+			this.entries = new LinkedHashMap<String, Cached<V>>(16, 0.75f, true) {
+				@Override protected boolean removeEldestEntry(Map.Entry<String, Cached<V>> eldest) {
+					return size() > maxSize;
+				}
+			};
+			this.invalidated = new LinkedHashMap<String, Long>() {
+				@Override protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+					if (size() <= maxSize) return false;
+					forgottenVersion = eldest.getValue();
+					return true;
+				}
+			};
+		}
+		
+		/** Returns the cached value (which can't be {@code null}), or {@code null} if there is none. */
+		synchronized V get(String key) {
+			Cached<V> entry = entries.get(key);
+			if (entry != null && entry.expiresAt >= System.currentTimeMillis()) {
+				hits.incrementAndGet();
+				return entry.value;
+			}
+			if (entry != null) entries.remove(key);
+			misses.incrementAndGet();
+			return null;
+		}
+		
+		/** Call before loading a value; pass the result to {@link #put(String, Object, long)}. */
+		synchronized long startLoad() {
+			return version;
+		}
+		
+		synchronized void put(String key, V value, long loadStartedAt) {
+			put(key, value, loadStartedAt, Long.MAX_VALUE);
+		}
+		
+		/**
+		 * Like {@link #put(String, Object, long)}, but the value expires at {@code notAfter} if that's before the TTL runs out.
+		 */
+		synchronized void put(String key, V value, long loadStartedAt, long notAfter) {
+			if (value == null || loadStartedAt < forgottenVersion) return;
+			Long lastInvalidated = invalidated.get(key);
+			if (lastInvalidated != null && lastInvalidated > loadStartedAt) return;
+			entries.put(key, new Cached<>(value, Math.min(notAfter, System.currentTimeMillis() + ttl)));
+		}
+		
+		synchronized void invalidate(String key) {
+			entries.remove(key);
+			// Remove first, so the key moves to the end of the line: the oldest invalidations are forgotten first.
+			invalidated.remove(key);
+			invalidated.put(key, ++version);
+		}
+		
+		/** Unlike {@link #invalidate(String)}, this doesn't stop loads in progress from storing their value; use it to drop values known to be outdated already. */
+		synchronized void remove(String key) {
+			entries.remove(key);
+		}
+	}
+	
+	@Override public TotpData getTotpData(String username) {
+		TotpData cached = totpData.get(username);
+		if (cached != null) return cached;
+		long load = totpData.startLoad();
+		TotpData out = delegate.getTotpData(username);
+		totpData.put(username, out, load);
+		return out;
+	}
+	
+	@Override public boolean userExists(String username) {
+		// Only 'yes' is cached: users are never deleted, and caching 'no' would let anybody fill the cache with made up usernames.
+		if (existingUsers.get(username) != null) return true;
+		long load = existingUsers.startLoad();
+		boolean exists = delegate.userExists(username);
+		if (exists) existingUsers.put(username, Boolean.TRUE, load);
+		return exists;
+	}
+	
+	@Override public void enableTotp(String username, String secret, long lastSuccessfulTick) {
+		try {
+			delegate.enableTotp(username, secret, lastSuccessfulTick);
+		} finally {
+			totpData.invalidate(username);
+		}
+	}
+	
+	@Override public void updateLastSuccessfulTick(String username, long lastSuccessfulTick) {
+		try {
+			delegate.updateLastSuccessfulTick(username, lastSuccessfulTick);
+		} finally {
+			totpData.invalidate(username);
+		}
+	}
+	
+	@Override public boolean advanceLastSuccessfulTick(String username, long tick) {
+		try {
+			return delegate.advanceLastSuccessfulTick(username, tick);
+		} finally {
+			totpData.invalidate(username);
+		}
+	}
+	
+	@Override public void markLockedOut(String username) {
+		try {
+			delegate.markLockedOut(username);
+		} finally {
+			totpData.invalidate(username);
+		}
+	}
+	
+	@Override public void clearLockedOut(String username) {
+		try {
+			delegate.clearLockedOut(username);
+		} finally {
+			totpData.invalidate(username);
+		}
+	}
+	
+	@Override public void createUserWithTotp(String username, char[] password, String secret, long lastSuccessfulTick) {
+		try {
+			delegate.createUserWithTotp(username, password, secret, lastSuccessfulTick);
+		} finally {
+			totpData.invalidate(username);
+			existingUsers.invalidate(username);
+		}
+	}
+	
+	@Override public boolean verifyPassword(String username, char[] password) {
+		return delegate.verifyPassword(username, password);
+	}
+	
+	@Override public LoginContext loadLoginContext(String username) {
+		long load = totpData.startLoad();
+		long existsLoad = existingUsers.startLoad();
+		LoginContext context = delegate.loadLoginContext(username);
+		if (context != null) {
+			// Logging in reads the TOTP data again right after this, so keep what we just got.
+			totpData.put(username, context.getTotpData(), load);
+			existingUsers.put(username, Boolean.TRUE, existsLoad);
+		}
+		return context;
+	}
+	
+	@Override public boolean verifyPassword(LoginContext context, char[] password) {
+		return delegate.verifyPassword(context, password);
+	}
+	
+	@Override public String createNewLongLivedSession(String username) {
+		return delegate.createNewLongLivedSession(username);
+	}
+	
+	@Override public String destroyLongLivedSession(String sessionId) {
+		// This destroys all sessions of the user; the underlying store tells us who that was, even if this session itself had already expired.
+		String username = delegate.destroyLongLivedSession(sessionId);
+		if (username != null) sessionEpochs.invalidate(username);
+		sessions.remove(sessionId);
+		return username;
+	}
+	
+	@Override public String getUserFromSessionKey(String sessionKey) {
+		LongLivedSession session = findLongLivedSession(sessionKey);
+		return session == null ? null : session.getUsername();
+	}
+	
+	@Override public LongLivedSession findLongLivedSession(String sessionKey) {
+		LongLivedSession cached = sessions.get(sessionKey);
+		if (cached != null) {
+			Integer epoch = sessionEpochs.get(cached.getUsername());
+			if (epoch != null && epoch == cached.getEpoch() && cached.getExpiresAt() >= System.currentTimeMillis()) {
+				sessionHits.incrementAndGet();
+				return cached;
+			}
+			// Possibly from before a logout everywhere; check again.
+			sessions.remove(sessionKey);
+		} else if (unknownSessions.get(sessionKey) != null) {
+			sessionHits.incrementAndGet();
+			return null;
+		}
+		
+		sessionMisses.incrementAndGet();
+		long load = sessions.startLoad();
+		long unknownLoad = unknownSessions.startLoad();
+		long epochLoad = sessionEpochs.startLoad();
+		LongLivedSession session = delegate.findLongLivedSession(sessionKey);
+		if (session != null) {
+			sessions.put(sessionKey, session, load, session.getExpiresAt());
+			sessionEpochs.put(session.getUsername(), session.getEpoch(), epochLoad);
+		} else {
+			unknownSessions.put(sessionKey, Boolean.TRUE, unknownLoad);
+		}
+		return session;
+	}
+	
+	/** The number of TOTP data lookups answered from the cache. */
+	public long getTotpDataHits() {
+		return totpData.hits.get();
+	}
+	
+	/** The number of TOTP data lookups that went to the underlying store. */
+	public long getTotpDataMisses() {
+		return totpData.misses.get();
+	}
+	
+	/** The number of username existence checks answered from the cache. */
+	public long getUserExistsHits() {
+		return existingUsers.hits.get();
+	}
+	
+	/** The number of username existence checks that went to the underlying store. */
+	public long getUserExistsMisses() {
+		return existingUsers.misses.get();
+	}
+	
+	/** The number of long lived session lookups answered from the cache (including lookups of unknown keys). */
+	public long getSessionHits() {
+		return sessionHits.get();
+	}
+	
+	/** The number of long lived session lookups that went to the underlying store. */
+	public long getSessionMisses() {
+		return sessionMisses.get();
+	}
+}
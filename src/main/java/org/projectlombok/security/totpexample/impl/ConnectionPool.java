@@ -0,0 +1,326 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small bounded JDBC connection pool, used by the embedded-DB based stores.
+ * 
+ * Connections handed out by {@link #getConnection()} behave like regular connections (with auto-commit off); closing them returns them to the pool instead,
+ * rolling back anything that wasn't committed. Each pooled connection also keeps its most recently used prepared statements around, so the same query
+ * is not parsed and planned over and over; closing such a statement just clears its parameters and batch. If the same query is prepared again while its cached statement
+ * is still open (nested or interleaved use), a separate statement is handed out for the second one, which is closed for real when you close it.
+ * <p>
+ * If all connections are in use, callers wait up to the acquisition timeout for one to be returned, and then fail with an {@code SQLTransientConnectionException}.
+ * <p>
+ * <em>NB: </em>Your server (or its application container) most likely already comes with a production-grade connection pool; use that instead of this one.
+ */
+public class ConnectionPool implements AutoCloseable {
+	private static final int STATEMENT_CACHE_SIZE = 32;
+	
+	private final String url;
+	private final int maxSize;
+	private final long acquireTimeoutMillis;
+	private final Semaphore permits;
+	private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+	private volatile boolean closed;
+	
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong statementCacheHits = new AtomicLong();
+	private final AtomicLong statementCacheMisses = new AtomicLong();
+	
+	/**
+	 * @param url The JDBC URL to connect to.
+	 * @param maxSize The maximum number of connections open at any time.
+	 * @param acquireTimeoutMillis How long to wait for a connection when all {@code maxSize} connections are in use.
+	 */
+	public ConnectionPool(String url, int maxSize, long acquireTimeoutMillis) {
+		if (maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1");
+		this.url = url;
+		this.maxSize = maxSize;
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+		this.permits = new Semaphore(maxSize, true);
+	}
+	
+	/**
+	 * Returns a connection with auto-commit off. You must close it (use try-with-resources) to return it to the pool.
+	 * 
+	 * @throws SQLTransientConnectionException If no connection became available within the acquisition timeout.
+	 */
+	public Connection getConnection() throws SQLException {
+		if (closed) throw new SQLException("Connection pool is closed");
+		long start = System.nanoTime();
+		try {
+			if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				timeouts.incrementAndGet();
+				throw new SQLTransientConnectionException("Timed out waiting for a database connection (" + maxSize + " in use)");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLTransientConnectionException("Interrupted waiting for a database connection", e);
+		} finally {
+			waitNanos.addAndGet(System.nanoTime() - start);
+		}
+		
+		try {
+			PooledConnection pooled = idle.pollFirst();
+			if (pooled == null) {
+				Connection physical = DriverManager.getConnection(url);
+				physical.setAutoCommit(false);
+				created.incrementAndGet();
+				pooled = new PooledConnection(physical);
+			}
+			acquired.incrementAndGet();
+			return pooled.lease();
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+	
+	/** The number of connections currently handed out. */
+	public int getActiveCount() {
+		return maxSize - permits.availablePermits();
+	}
+	
+	/** The number of open connections waiting in the pool to be handed out. */
+	public int getIdleCount() {
+		return idle.size();
+	}
+	
+	/** The number of times a connection was handed out. */
+	public long getAcquiredCount() {
+		return acquired.get();
+	}
+	
+	/** The number of times no connection became available within the acquisition timeout. */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+	
+	/** The total time callers spent waiting for a connection, in nanoseconds. */
+	public long getTotalWaitNanos() {
+		return waitNanos.get();
+	}
+	
+	/** The number of physical connections opened over the life of this pool. */
+	public long getCreatedCount() {
+		return created.get();
+	}
+	
+	/** The number of times a prepared statement was reused instead of prepared again. */
+	public long getStatementCacheHits() {
+		return statementCacheHits.get();
+	}
+	
+	/** The number of times a statement had to be prepared. */
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.get();
+	}
+	
+	/**
+	 * Closes all idle connections; connections currently handed out are closed when they are returned.
+	 */
+	@Override public void close() {
+		closed = true;
+		PooledConnection pooled;
+		while ((pooled = idle.pollFirst()) != null) pooled.closePhysical();
+	}
+	
+	private void giveBack(PooledConnection pooled, boolean healthy) {
+		try {
+			if (healthy && !closed) idle.addFirst(pooled);
+			else pooled.closePhysical();
+		} finally {
+			permits.release();
+		}
+	}
+	
+	private final class PooledConnection {
+		private final Connection physical;
+		// Cached statements currently handed out; only used by the connection's current lease, so no locking needed.
+		private final Set<PreparedStatement> checkedOut = Collections.newSetFromMap(new IdentityHashMap<>());
+		private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= STATEMENT_CACHE_SIZE) return false;
+				// One that is handed out right now gets closed when it comes back instead.
+				if (!checkedOut.contains(eldest.getValue())) closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+		
+		PooledConnection(Connection physical) {
+			this.physical = physical;
+		}
+		
+		Connection lease() {
+			return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[] {Connection.class}, new LeasedConnection(this));
+		}
+		
+		PreparedStatement checkOut(String cacheKey, String sql, int autoGeneratedKeys) throws SQLException {
+			PreparedStatement statement = statements.get(cacheKey);
+			if (statement != null && checkedOut.contains(statement)) {
+				// Still in use by the caller; hand out a statement of its own, which isn't cached.
+				statementCacheMisses.incrementAndGet();
+				return physical.prepareStatement(sql, autoGeneratedKeys);
+			}
+			if (statement == null || statement.isClosed()) {
+				statementCacheMisses.incrementAndGet();
+				statement = physical.prepareStatement(sql, autoGeneratedKeys);
+				statements.put(cacheKey, statement);
+			} else {
+				statementCacheHits.incrementAndGet();
+			}
+			checkedOut.add(statement);
+			return statement;
+		}
+		
+		/**
+		 * Takes back a statement from {@link #checkOut(String, String, int)}: a cached one is reset for the next user, any other one is closed.
+		 */
+		void checkIn(String cacheKey, PreparedStatement statement) throws SQLException {
+			if (checkedOut.remove(statement) && statements.get(cacheKey) == statement) {
+				statement.clearParameters();
+				statement.clearBatch();
+			} else {
+				statement.close();
+			}
+		}
+		
+		/**
+		 * Resets cached statements that the lease that just ended didn't close.
+		 */
+		void checkInAll() {
+			for (PreparedStatement statement : checkedOut) {
+				try {
+					statement.clearParameters();
+					statement.clearBatch();
+				} catch (SQLException e) {
+					closeQuietly(statement);
+				}
+			}
+			checkedOut.clear();
+		}
+		
+		private void closeQuietly(PreparedStatement statement) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				// It's going away anyway.
+			}
+		}
+		
+		void closePhysical() {
+			try {
+				physical.close();
+			} catch (SQLException e) {
+				// Nothing more we can do.
+			}
+		}
+	}
+	
+	/**
+	 * The connection as seen by a single user of the pool, from {@code getConnection()} until {@code close()}.
+	 */
+	private final class LeasedConnection implements InvocationHandler {
+		private final PooledConnection pooled;
+		private boolean released;
+		
+		LeasedConnection(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+		
+		@Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			int argCount = args == null ? 0 : args.length;
+			switch (name) {
+			case "close":
+				release();
+				return null;
+			case "isClosed":
+				return released || pooled.physical.isClosed();
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "Pooled connection to " + url;
+			}
+			
+			if (released) throw new SQLException("Connection has been returned to the pool");
+			if (name.equals("prepareStatement") && (argCount == 1 || (argCount == 2 && method.getParameterTypes()[1] == int.class))) {
+				String sql = (String) args[0];
+				int autoGeneratedKeys = argCount == 1 ? Statement.NO_GENERATED_KEYS : (Integer) args[1];
+				String cacheKey = autoGeneratedKeys + ":" + sql;
+				return cachedStatement(proxy, cacheKey, pooled.checkOut(cacheKey, sql, autoGeneratedKeys));
+			}
+			
+			try {
+				return method.invoke(pooled.physical, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+		
+		private void release() {
+			if (released) return;
+			released = true;
+			pooled.checkInAll();
+			boolean healthy;
+			try {
+				pooled.physical.rollback();
+				healthy = !pooled.physical.isClosed();
+			} catch (SQLException e) {
+				healthy = false;
+			}
+			giveBack(pooled, healthy);
+		}
+		
+		private PreparedStatement cachedStatement(Object connectionProxy, String cacheKey, PreparedStatement statement) {
+			boolean[] closed = {false};
+			return (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> {
+				switch (method.getName()) {
+				case "close":
+					// Keep it for the next user of this connection (if it's the cached one); closing twice must not check it in twice.
+					if (!closed[0] && !released) pooled.checkIn(cacheKey, statement);
+					closed[0] = true;
+					return null;
+				case "isClosed":
+					return closed[0] || released || statement.isClosed();
+				case "getConnection":
+					return connectionProxy;
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				}
+				try {
+					return method.invoke(statement, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			});
+		}
+	}
+}
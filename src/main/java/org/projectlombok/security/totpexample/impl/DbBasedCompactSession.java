@@ -0,0 +1,106 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.projectlombok.security.totpexample.Session;
+import org.projectlombok.security.totpexample.SessionNotFoundException;
+import org.projectlombok.security.totpexample.SessionStoreException;
+
+/**
+ * The {@code Session} implementation for {@link DbBasedSessionStore.Layout#SINGLE_ROW}: all keys and values live in the {@code PAYLOAD} column of the session row.
+ * 
+ * Every read is a single query for that one row, which also checks that the session hasn't expired or been invalidated in the meantime, just like
+ * {@link DbBasedSession} does. Writes re-read the row under a lock, so concurrent writes to the same session don't overwrite each other's values.
+ */
+class DbBasedCompactSession implements Session {
+	private final DbBasedSessionStore store;
+	private final int sessionId;
+	private final String sessionKey;
+	
+	DbBasedCompactSession(DbBasedSessionStore store, int sessionId, String sessionKey) {
+		this.store = store;
+		this.sessionId = sessionId;
+		this.sessionKey = sessionKey;
+	}
+	
+	@Override public String getSessionKey() {
+		return sessionKey;
+	}
+	
+	@Override public Session put(String key, String value) {
+		return putAll(Collections.singletonMap(key, value));
+	}
+	
+	@Override public Session putAll(Map<String, String> values) {
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			if (e.getKey() == null) throw new NullPointerException("key");
+			if (e.getValue() == null) throw new NullPointerException("value");
+			if (e.getKey().isEmpty()) throw new IllegalArgumentException("key is empty");
+		}
+		if (values.isEmpty()) return this;
+		
+		try (Connection connection = store.createConnection()) {
+			String[] current;
+			try (PreparedStatement s = connection.prepareStatement("select PAYLOAD from SESSIONSTORE where ID = ? and EXPIRES >= now() for update;")) {
+				s.setInt(1, sessionId);
+				try (ResultSet result = s.executeQuery()) {
+					if (!result.next()) throw new SessionNotFoundException(sessionKey);
+					byte[] payload = result.getBytes(1);
+					current = payload == null ? new String[0] : SessionPayloads.decode(payload);
+				}
+			}
+			
+			for (Map.Entry<String, String> e : values.entrySet()) current = SessionPayloads.with(current, 0, e.getKey(), e.getValue());
+			try (PreparedStatement s = connection.prepareStatement("update SESSIONSTORE set PAYLOAD = ? where ID = ?;")) {
+				s.setBytes(1, SessionPayloads.encode(current));
+				s.setInt(2, sessionId);
+				s.executeUpdate();
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			throw new SessionStoreException(e);
+		}
+		
+		return this;
+	}
+	
+	@Override public String getOrDefault(String key, String defaultValue) {
+		if (key == null) throw new NullPointerException("key");
+		if (key.isEmpty()) throw new IllegalArgumentException("key is empty");
+		
+		String value = SessionPayloads.get(load(), 0, key);
+		return value != null ? value : defaultValue;
+	}
+	
+	@Override public Map<String, String> snapshot() {
+		String[] e = load();
+		Map<String, String> out = new HashMap<>();
+		for (int i = 0; i < e.length - 1; i += 2) out.put(e[i], e[i + 1]);
+		return Collections.unmodifiableMap(out);
+	}
+	
+	private String[] load() {
+		try (Connection connection = store.createConnection()) {
+			try (PreparedStatement s = connection.prepareStatement("select PAYLOAD from SESSIONSTORE where ID = ? and EXPIRES >= now();")) {
+				s.setInt(1, sessionId);
+				boolean found;
+				byte[] payload = null;
+				try (ResultSet result = s.executeQuery()) {
+					found = result.next();
+					if (found) payload = result.getBytes(1);
+				}
+				connection.commit();
+				if (!found) throw new SessionNotFoundException(sessionKey);
+				return payload == null ? new String[0] : SessionPayloads.decode(payload);
+			}
+		} catch (SQLException e) {
+			throw new SessionStoreException(e);
+		}
+	}
+}
@@ -4,6 +4,9 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.projectlombok.security.totpexample.Session;
 import org.projectlombok.security.totpexample.SessionNotFoundException;
@@ -48,6 +51,33 @@ class DbBasedSession implements Session {
 		return this;
 	}
 	
+	@Override public Session putAll(Map<String, String> values) {
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			if (e.getKey() == null) throw new NullPointerException("key");
+			if (e.getValue() == null) throw new NullPointerException("value");
+			if (e.getKey().isEmpty()) throw new IllegalArgumentException("key is empty");
+		}
+		if (values.isEmpty()) return this;
+		
+		try (Connection connection = store.createConnection()) {
+			ensureSession(connection);
+			try (PreparedStatement s = connection.prepareStatement("merge into SESSIONVALUES (SESSION, KEY, VALUE) key (SESSION, KEY) values (?, ?, ?);")) {
+				for (Map.Entry<String, String> e : values.entrySet()) {
+					s.setInt(1, sessionId);
+					s.setString(2, e.getKey());
+					s.setString(3, e.getValue());
+					s.addBatch();
+				}
+				s.executeBatch();
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			throw new SessionStoreException(e);
+		}
+		
+		return this;
+	}
+	
 	private void ensureSession(Connection connection) {
 		try (PreparedStatement s = connection.prepareStatement("select ID from SESSIONSTORE where id = ? and EXPIRES >= now();")) {
 			s.setInt(1, sessionId);
@@ -68,13 +98,35 @@ class DbBasedSession implements Session {
 			try (PreparedStatement s = connection.prepareStatement("select VALUE from SESSIONVALUES where SESSION = ? and KEY = ?;")) {
 				s.setInt(1, sessionId);
 				s.setString(2, key);
+				String value = null;
 				try (ResultSet result = s.executeQuery()) {
-					String value = null;
 					if (result.next()) value = result.getString(1);
-					result.close();
-					connection.commit();
-					return value != null ? value : defaultValue;
 				}
+				connection.commit();
+				return value != null ? value : defaultValue;
+			}
+		} catch (SQLException e) {
+			throw new SessionStoreException(e);
+		}
+	}
+	
+	@Override public Map<String, String> snapshot() {
+		// A single query both checks that the session is still live, and fetches all its values.
+		try (Connection connection = store.createConnection()) {
+			try (PreparedStatement s = connection.prepareStatement("select V.KEY, V.VALUE from SESSIONSTORE S left join SESSIONVALUES V on V.SESSION = S.ID where S.ID = ? and S.EXPIRES >= now();")) {
+				s.setInt(1, sessionId);
+				boolean found = false;
+				Map<String, String> values = new HashMap<>();
+				try (ResultSet result = s.executeQuery()) {
+					while (result.next()) {
+						found = true;
+						String key = result.getString(1);
+						if (key != null) values.put(key, result.getString(2));
+					}
+				}
+				connection.commit();
+				if (!found) throw new SessionNotFoundException(sessionKey);
+				return Collections.unmodifiableMap(values);
 			}
 		} catch (SQLException e) {
 			throw new SessionStoreException(e);
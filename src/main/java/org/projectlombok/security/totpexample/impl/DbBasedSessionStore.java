@@ -1,14 +1,23 @@
 package org.projectlombok.security.totpexample.impl;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.projectlombok.security.totpexample.Crypto;
 import org.projectlombok.security.totpexample.Session;
@@ -18,36 +27,94 @@ import org.projectlombok.security.totpexample.SessionStoreException;
 
 /**
  * This is an embedded DB engine (based on {@code h2database.com}) based implementation of the {@code SessionStore} interface.
+ * 
+ * Session values are stored in one of two ways; see {@link Layout}.
+ * <p>
+ * Session keys look like {@code id.random.mac}: the row's primary key, the random part that is stored in the {@code KEY} column, and a MAC over both.
+ * Loading a session is thus a primary key lookup, and keys that weren't handed out by this store (guessed, garbled, or made up to probe for sessions) are rejected
+ * by checking the MAC, without touching the database at all. The MAC key is stored in the database, so session keys stay valid across restarts.
  */
 public class DbBasedSessionStore implements SessionStore {
+	/**
+	 * How session values are laid out in the database.
+	 */
+	public enum Layout {
+		/**
+		 * Every key/value pair is its own row in the {@code SESSIONVALUES} table. Each access first checks the session row and then reads or writes the value rows.
+		 */
+		ROW_PER_VALUE,
+		
+		/**
+		 * All keys and values of a session are serialized into a single binary {@code PAYLOAD} column on the session row itself. Loading a session is a single indexed read,
+		 * and updating it rewrites just that one row. Sessions only hold a handful of short strings, so rewriting all of them is cheaper than maintaining a row and an index entry per value.
+		 * <p>
+		 * On startup, values of existing sessions still stored in {@code SESSIONVALUES} are moved into {@code PAYLOAD}.
+		 * <em>NB: </em>This migration is one-way; switching back to {@code ROW_PER_VALUE} loses the values of sessions in progress (so users would have to start their login or signup over).
+		 */
+		SINGLE_ROW;
+	}
+	
+	private static final long REAPER_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	private static final int REAPER_CHUNK_SIZE = 500;
+	private static final int RANDOM_LENGTH = 12;
+	private static final int MAC_LENGTH = 12;
+	
 	private final Crypto crypto;
 	private final File dbDir = new File("./db");
+	private final ConnectionPool connections;
+	private final Layout layout;
+	private final byte[] macKey;
+	private final ExpiryReaper reaper;
 	
 	public DbBasedSessionStore(Crypto crypto) {
+		this(crypto, new ConnectionPool("jdbc:h2:./db/sessions;DB_CLOSE_DELAY=60", 10, TimeUnit.SECONDS.toMillis(5)));
+	}
+	
+	/**
+	 * @param connections A pool of connections to the database to store sessions in; the tables are created if they don't exist yet.
+	 */
+	public DbBasedSessionStore(Crypto crypto, ConnectionPool connections) {
+		this(crypto, connections, Layout.ROW_PER_VALUE);
+	}
+	
+	/**
+	 * @param connections A pool of connections to the database to store sessions in; the tables are created if they don't exist yet.
+	 * @param layout How to store session values.
+	 */
+	public DbBasedSessionStore(Crypto crypto, ConnectionPool connections, Layout layout) {
 		if (crypto == null) throw new NullPointerException("crypto");
+		if (connections == null) throw new NullPointerException("connections");
+		if (layout == null) throw new NullPointerException("layout");
 		this.crypto = crypto;
+		this.connections = connections;
+		this.layout = layout;
 		this.dbDir.mkdirs();
+		try (Connection connection = createConnection()) {
+			createTables(connection);
+			this.macKey = loadMacKey(connection);
+			if (layout == Layout.SINGLE_ROW) migrateToSingleRow(connection);
+		} catch (SQLException e) {
+			throw new SessionStoreException(e);
+		}
+		this.reaper = new ExpiryReaper(this::createConnection, "SESSIONSTORE", REAPER_INTERVAL, REAPER_CHUNK_SIZE);
 	}
 	
 	Connection createConnection() throws SQLException {
-		Connection connection = DriverManager.getConnection("jdbc:h2:./db/sessions;DB_CLOSE_DELAY=60");
-		connection.setAutoCommit(false);
-		return connection;
+		return connections.getConnection();
 	}
 	
-	private void ensureSessionTables(Connection connection) throws SQLException {
+	/**
+	 * Runs once, at startup. Expired sessions are not cleaned up here but by the {@link ExpiryReaper}; session values go along with them via the cascading foreign key.
+	 */
+	private void createTables(Connection connection) throws SQLException {
 		DatabaseMetaData meta = connection.getMetaData();
 		boolean available;
 		try (ResultSet tables = meta.getTables(null, null, "SESSIONSTORE", null)) {
 			available = tables.next();
 		}
 		
-		if (available) {
-			try (Statement s = connection.createStatement()) {
-				s.execute("delete from SESSIONSTORE where EXPIRES < now();");
-			}
-		} else {
-			try (Statement s = connection.createStatement()) {
+		try (Statement s = connection.createStatement()) {
+			if (!available) {
 				s.execute(
 					"create table SESSIONSTORE (" +
 					"ID int identity, " +
@@ -65,26 +132,95 @@ public class DbBasedSessionStore implements SessionStore {
 					"foreign key (SESSION) references SESSIONSTORE on delete cascade" +
 					");");
 			}
+			
+			// Lets the reaper find expired sessions without scanning; existing installations get this index on their next startup.
+			s.execute("create index if not exists SESSIONSTORE_EXPIRES on SESSIONSTORE(EXPIRES);");
+			
+			// Used by the SINGLE_ROW layout; existing installations get this column on their next startup.
+			s.execute("alter table SESSIONSTORE add column if not exists PAYLOAD varbinary;");
+			
+			s.execute(
+				"create table if not exists SESSIONSTOREMETA (" +
+				"NAME varchar primary key, " +
+				"VALUE varbinary not null" +
+				");");
+		}
+		connection.commit();
+	}
+	
+	/**
+	 * Returns the key used to MAC session keys, generating and storing it the first time.
+	 */
+	private byte[] loadMacKey(Connection connection) throws SQLException {
+		try (Statement s = connection.createStatement()) {
+			try (ResultSet result = s.executeQuery("select VALUE from SESSIONSTOREMETA where NAME = 'MACKEY';")) {
+				if (result.next()) return result.getBytes(1);
+			}
+		}
+		
+		byte[] key = crypto.generateBytes(32);
+		try (PreparedStatement s = connection.prepareStatement("insert into SESSIONSTOREMETA (NAME, VALUE) values ('MACKEY', ?);")) {
+			s.setBytes(1, key);
+			s.executeUpdate();
+		}
+		connection.commit();
+		return key;
+	}
+	
+	/**
+	 * Folds all values stored in {@code SESSIONVALUES} into the {@code PAYLOAD} column of their session, in a single transaction.
+	 */
+	private void migrateToSingleRow(Connection connection) throws SQLException {
+		List<Integer> ids = new ArrayList<>();
+		List<String[]> payloads = new ArrayList<>();
+		try (PreparedStatement s = connection.prepareStatement("select S.ID, V.KEY, V.VALUE from SESSIONSTORE S join SESSIONVALUES V on V.SESSION = S.ID where S.PAYLOAD is null and S.EXPIRES >= now() order by S.ID;")) {
+			try (ResultSet result = s.executeQuery()) {
+				while (result.next()) {
+					int id = result.getInt(1);
+					if (ids.isEmpty() || ids.get(ids.size() - 1) != id) {
+						ids.add(id);
+						payloads.add(new String[0]);
+					}
+					int last = payloads.size() - 1;
+					payloads.set(last, SessionPayloads.with(payloads.get(last), 0, result.getString(2), result.getString(3)));
+				}
+			}
+		}
+		
+		if (!ids.isEmpty()) {
+			try (PreparedStatement s = connection.prepareStatement("update SESSIONSTORE set PAYLOAD = ? where ID = ?;")) {
+				for (int i = 0; i < ids.size(); i++) {
+					s.setBytes(1, SessionPayloads.encode(payloads.get(i)));
+					s.setInt(2, ids.get(i));
+					s.addBatch();
+				}
+				s.executeBatch();
+			}
+		}
+		
+		try (Statement s = connection.createStatement()) {
+			s.execute("delete from SESSIONVALUES;");
 		}
 		connection.commit();
 	}
 	
 	@Override public Session create(long ttl) {
 		long expiresAt = System.currentTimeMillis() + ttl;
-		String sessionKey = crypto.generateRandomKey(12);
+		String random = crypto.generateRandomKey(RANDOM_LENGTH);
 		try (Connection connection = createConnection()) {
-			ensureSessionTables(connection);
 			try (PreparedStatement s = connection.prepareStatement("insert into SESSIONSTORE (KEY, EXPIRES) values (?, ?);", Statement.RETURN_GENERATED_KEYS)) {
-				s.setString(1, sessionKey);
+				s.setString(1, random);
 				s.setTimestamp(2, new Timestamp(expiresAt));
 				s.executeUpdate();
+				int id;
 				try (ResultSet result = s.getGeneratedKeys()) {
 					result.next();
-					int id = result.getInt(1);
-					result.close();
-					connection.commit();
-					return new DbBasedSession(this, id, sessionKey);
+					id = result.getInt(1);
 				}
+				connection.commit();
+				String sessionKey = id + "." + random + "." + mac(id, random);
+				if (layout == Layout.SINGLE_ROW) return new DbBasedCompactSession(this, id, sessionKey);
+				return new DbBasedSession(this, id, sessionKey);
 			}
 		} catch (SQLException e) {
 			throw new SessionStoreException(e);
@@ -92,22 +228,116 @@ public class DbBasedSessionStore implements SessionStore {
 	}
 	
 	@Override public Session get(String sessionKey) {
+		int id = parseSessionKey(sessionKey);
+		String random = sessionKey.substring(sessionKey.indexOf('.') + 1, sessionKey.lastIndexOf('.'));
+		try (Connection connection = createConnection()) {
+			try (PreparedStatement s = connection.prepareStatement("select ID from SESSIONSTORE where ID = ? and KEY = ? and EXPIRES >= now();")) {
+				s.setInt(1, id);
+				s.setString(2, random);
+				boolean found;
+				try (ResultSet result = s.executeQuery()) {
+					found = result.next();
+				}
+				connection.commit();
+				if (!found) throw new SessionNotFoundException(sessionKey);
+				if (layout == Layout.SINGLE_ROW) return new DbBasedCompactSession(this, id, sessionKey);
+				return new DbBasedSession(this, id, sessionKey);
+			}
+		} catch (SQLException e) {
+			throw new SessionStoreException(e);
+		}
+	}
+	
+	@Override public Map<String, String> getAndInvalidate(String sessionKey) {
+		int id = parseSessionKey(sessionKey);
+		String random = sessionKey.substring(sessionKey.indexOf('.') + 1, sessionKey.lastIndexOf('.'));
 		try (Connection connection = createConnection()) {
-			ensureSessionTables(connection);
-			try (PreparedStatement s = connection.prepareStatement("select id from SESSIONSTORE where KEY = ? and EXPIRES >= now();")) {
-				s.setString(1, sessionKey);
+			Map<String, String> values = new HashMap<>();
+			// Lock the session row first; a concurrent call for the same session waits here, and then no longer finds it.
+			try (PreparedStatement s = connection.prepareStatement("select PAYLOAD from SESSIONSTORE where ID = ? and KEY = ? and EXPIRES >= now() for update;")) {
+				s.setInt(1, id);
+				s.setString(2, random);
 				try (ResultSet result = s.executeQuery()) {
-					if (result.next()) {
-						int id = result.getInt(1);
-						result.close();
-						connection.commit();
-						return new DbBasedSession(this, id, sessionKey);
+					if (!result.next()) throw new SessionNotFoundException(sessionKey);
+					byte[] payload = result.getBytes(1);
+					if (payload != null) {
+						String[] entries = SessionPayloads.decode(payload);
+						for (int i = 0; i < entries.length - 1; i += 2) values.put(entries[i], entries[i + 1]);
+					}
+				}
+			}
+			
+			if (layout == Layout.ROW_PER_VALUE) {
+				try (PreparedStatement s = connection.prepareStatement("select KEY, VALUE from SESSIONVALUES where SESSION = ?;")) {
+					s.setInt(1, id);
+					try (ResultSet result = s.executeQuery()) {
+						while (result.next()) values.put(result.getString(1), result.getString(2));
 					}
-					throw new SessionNotFoundException(sessionKey);
 				}
 			}
+			
+			deleteSession(connection, id);
+			connection.commit();
+			return Collections.unmodifiableMap(values);
+		} catch (SQLException e) {
+			throw new SessionStoreException(e);
+		}
+	}
+	
+	@Override public void invalidate(String sessionKey) {
+		int id;
+		try {
+			id = parseSessionKey(sessionKey);
+		} catch (SessionNotFoundException e) {
+			return;
+		}
+		
+		try (Connection connection = createConnection()) {
+			deleteSession(connection, id);
+			connection.commit();
 		} catch (SQLException e) {
 			throw new SessionStoreException(e);
 		}
 	}
+	
+	/**
+	 * The session's values (if any) in {@code SESSIONVALUES} go along with it, via the cascading foreign key.
+	 */
+	private void deleteSession(Connection connection, int id) throws SQLException {
+		try (PreparedStatement s = connection.prepareStatement("delete from SESSIONSTORE where ID = ?;")) {
+			s.setInt(1, id);
+			s.executeUpdate();
+		}
+	}
+	
+	/**
+	 * Checks the format and MAC of a session key, and returns the row id it contains.
+	 * 
+	 * @throws SessionNotFoundException If the key is malformed or its MAC doesn't match; no database access is needed to find out.
+	 */
+	private int parseSessionKey(String sessionKey) {
+		if (sessionKey == null) throw new SessionNotFoundException(sessionKey);
+		int first = sessionKey.indexOf('.');
+		int last = sessionKey.lastIndexOf('.');
+		if (first < 1 || last <= first || first > 10) throw new SessionNotFoundException(sessionKey);
+		
+		int id;
+		try {
+			id = Integer.parseInt(sessionKey.substring(0, first));
+		} catch (NumberFormatException e) {
+			throw new SessionNotFoundException(sessionKey);
+		}
+		
+		String random = sessionKey.substring(first + 1, last);
+		byte[] expected = mac(id, random).getBytes(StandardCharsets.US_ASCII);
+		byte[] actual = sessionKey.substring(last + 1).getBytes(StandardCharsets.US_ASCII);
+		// SECURITY NOTE: Compare in constant time, so response times don't reveal how much of a forged MAC was correct.
+		if (!MessageDigest.isEqual(expected, actual)) throw new SessionNotFoundException(sessionKey);
+		return id;
+	}
+	
+	private String mac(int id, String random) {
+		byte[] mac = crypto.hmac(macKey, Integer.toString(id).getBytes(StandardCharsets.US_ASCII), random.getBytes(StandardCharsets.US_ASCII));
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(mac, MAC_LENGTH));
+	}
 }
@@ -1,16 +1,27 @@
 package org.projectlombok.security.totpexample.impl;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.sql.Connection;
-import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.projectlombok.security.totpexample.Base32;
 import org.projectlombok.security.totpexample.Crypto;
 import org.projectlombok.security.totpexample.UserStore;
 import org.projectlombok.security.totpexample.UserStoreException;
@@ -21,34 +32,101 @@ import org.projectlombok.security.totpexample.Totp.TotpData;
  */
 public class DbBasedUserStore implements UserStore {
 	private static final long DEFAULT_USERSESSION_EXPIRY = TimeUnit.DAYS.toMillis(5);
+	// However actively it's used, a long lived session never lasts longer than this.
+	private static final long MAX_USERSESSION_LIFETIME = TimeUnit.DAYS.toMillis(30);
+	private static final int USERSESSION_RANDOM_LENGTH = 32;
+	private static final int USERSESSION_MAC_LENGTH = 12;
+	private static final long REAPER_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	private static final int REAPER_CHUNK_SIZE = 500;
+	private static final long SESSION_EXTENSION_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+	private static final double DEFAULT_SESSION_RENEWAL_POINT = 0.5;
 	private final Crypto crypto;
 	private final File dbDir = new File("./db");
+	private final ConnectionPool connections;
+	private final FailedPasswordCache failedPasswords;
+	private final ExpiryReaper reaper;
+	private static final double USERNAME_FILTER_REBUILD_RATE = 0.05;
+	private volatile BloomFilter usernames;
+	private BloomFilter rebuildingUsernames; // Guarded by usernameFilterLock; null unless the filter is being rebuilt.
+	private final Object usernameFilterLock = new Object();
+	private final ReentrantReadWriteLock usernameCreation = new ReentrantReadWriteLock();
+	private final AtomicBoolean rebuildingUsernameFilter = new AtomicBoolean();
+	private final byte[] sessionMacKey;
+	private final AtomicLong filterRejections = new AtomicLong();
+	private final TickWriteBehind tickWriteBehind; // null if ticks are written right away.
+	private final SessionExtender sessionExtender; // null if long lived sessions have a fixed expiry.
+	private final long renewSessionsBelow;
 	
 	public DbBasedUserStore(Crypto crypto) {
+		this(crypto, new ConnectionPool("jdbc:h2:./db/users;DB_CLOSE_DELAY=60", 10, TimeUnit.SECONDS.toMillis(5)));
+	}
+	
+	/**
+	 * @param connections A pool of connections to the database to store users in; the tables are created, or migrated to the latest schema, if needed.
+	 */
+	public DbBasedUserStore(Crypto crypto, ConnectionPool connections) {
+		this(crypto, connections, 0L);
+	}
+	
+	/**
+	 * @param connections A pool of connections to the database to store users in; the tables are created, or migrated to the latest schema, if needed.
+	 * @param tickWriteBehindMillis If 0, each successful login writes its TOTP tick right away, in its own transaction. Otherwise ticks are kept in memory and written
+	 *     in batches this many milliseconds apart, which trades a little durability for far fewer transactions; see {@link TickWriteBehind} for the details.
+	 */
+	public DbBasedUserStore(Crypto crypto, ConnectionPool connections, long tickWriteBehindMillis) {
+		this(crypto, connections, tickWriteBehindMillis, DEFAULT_SESSION_RENEWAL_POINT);
+	}
+	
+	/**
+	 * @param connections A pool of connections to the database to store users in; the tables are created, or migrated to the latest schema, if needed.
+	 * @param tickWriteBehindMillis See {@link #DbBasedUserStore(Crypto, ConnectionPool, long)}.
+	 * @param sessionRenewalPoint Long lived sessions slide: once this fraction of a session's lifetime has passed, using it gives it a full lifetime again
+	 *     (so 0.5 means: a session not used for 2.5 days gets 5 days again the next time it's used). These extensions are written in the background, in batches.
+	 *     Use 1.0 to give every session a fixed lifetime.
+	 */
+	public DbBasedUserStore(Crypto crypto, ConnectionPool connections, long tickWriteBehindMillis, double sessionRenewalPoint) {
 		if (crypto == null) throw new NullPointerException("crypto");
+		if (connections == null) throw new NullPointerException("connections");
+		if (!(sessionRenewalPoint >= 0.0 && sessionRenewalPoint <= 1.0)) throw new IllegalArgumentException("sessionRenewalPoint must be between 0.0 and 1.0");
 		this.crypto = crypto;
+		this.connections = connections;
+		this.failedPasswords = new FailedPasswordCache(crypto);
 		this.dbDir.mkdirs();
+		try (Connection connection = createConnection()) {
+			createTables(connection);
+			this.usernames = loadFilter(connection, "USERSTORE", "select USERNAME from USERSTORE;");
+			this.sessionMacKey = loadSessionMacKey(connection);
+		} catch (SQLException e) {
+			throw new UserStoreException(e);
+		}
+		this.reaper = new ExpiryReaper(this::createConnection, "USERSESSIONSTORE", REAPER_INTERVAL, REAPER_CHUNK_SIZE);
+		this.tickWriteBehind = tickWriteBehindMillis > 0 ? new TickWriteBehind(this::createConnection, tickWriteBehindMillis) : null;
+		this.sessionExtender = sessionRenewalPoint < 1.0 ? new SessionExtender(this::createConnection, SESSION_EXTENSION_INTERVAL) : null;
+		this.renewSessionsBelow = (long) (DEFAULT_USERSESSION_EXPIRY * (1.0 - sessionRenewalPoint));
 	}
 	
 	Connection createConnection() throws SQLException {
-		Connection connection = DriverManager.getConnection("jdbc:h2:./db/users;DB_CLOSE_DELAY=60");
-		connection.setAutoCommit(false);
-		return connection;
+		return connections.getConnection();
 	}
 	
-	private void ensureUserTables(Connection connection) throws SQLException {
-		DatabaseMetaData meta = connection.getMetaData();
-		boolean available;
-		try (ResultSet tables = meta.getTables(null, null, "USERSTORE", null)) {
-			available = tables.next();
-		}
-		
-		if (available) {
-			try (Statement s = connection.createStatement()) {
-				s.execute("delete from USERSESSIONSTORE where EXPIRES < now();");
-			}
-		} else {
-			try (Statement s = connection.createStatement()) {
+	/**
+	 * Runs once, at startup: brings the tables up to the latest version of the schema. Expired sessions are not cleaned up here but by the {@link ExpiryReaper}.
+	 */
+	private void createTables(Connection connection) throws SQLException {
+		new SchemaMigrations()
+			.add(DbBasedUserStore::createOriginalTables)
+			.add(DbBasedUserStore::linkTotpByUserId)
+			.add(DbBasedUserStore::addSessionEpochs)
+			.add(DbBasedUserStore::signSessionKeys)
+			.migrate(connection);
+	}
+	
+	/**
+	 * Version 1: the tables as they were before there were migrations. Databases created back then already have them, and move straight on to version 2.
+	 */
+	private static void createOriginalTables(Connection connection) throws SQLException {
+		try (Statement s = connection.createStatement()) {
+			if (!SchemaMigrations.tableExists(connection, "USERSTORE")) {
 				// USERSTORE+TOTPSTORE could of course be a single table (integrate columns 'LASTTICK', 'LOCKEDOUT', and 'SECRET' from TOTPSTORE into USERSTORE).
 				// Here we use 2 tables, to show how to update an existing installation without modifying a table. This setup is also nice if you
 				// don't force every user to enable TOTP right away.
@@ -80,14 +158,167 @@ public class DbBasedUserStore implements UserStore {
 				
 				s.execute("create index on USERSESSIONSTORE(SESSIONKEY);");
 			}
+			
+			// Lets the reaper find expired sessions without scanning.
+			s.execute("create index if not exists USERSESSIONSTORE_EXPIRES on USERSESSIONSTORE(EXPIRES);");
+		}
+	}
+	
+	/**
+	 * Version 2: {@code TOTPSTORE} is keyed on the user's integer ID instead of on a copy of their username, and stores the secret as its 10 raw bytes instead of as
+	 * base32 text. Session key lookups get a covering index, so that checking a long lived session never reads the table row itself.
+	 * <p>
+	 * {@code TOTPSTORE} is rebuilt as {@code TOTPSTORE_V2} and then swapped in. Each step checks what an interrupted earlier run may have done already.
+	 */
+	private static void linkTotpByUserId(Connection connection) throws SQLException {
+		try (Statement s = connection.createStatement()) {
+			if (SchemaMigrations.columnExists(connection, "TOTPSTORE", "USERNAME")) {
+				s.execute("drop table if exists TOTPSTORE_V2;");
+				s.execute(
+					"create table TOTPSTORE_V2 (" +
+					"USERID int not null primary key, " +
+					"LASTTICK bigint not null, " +
+					"LOCKEDOUT boolean not null, " +
+					"SECRET varbinary not null, " +
+					"foreign key (USERID) references USERSTORE(ID) on delete cascade" +
+					");");
+				
+				try (
+					ResultSet rows = s.executeQuery("select U.ID, T.LASTTICK, T.LOCKEDOUT, T.SECRET from TOTPSTORE T inner join USERSTORE U on U.USERNAME = T.USERNAME;");
+					PreparedStatement copy = connection.prepareStatement("insert into TOTPSTORE_V2 (USERID, LASTTICK, LOCKEDOUT, SECRET) values (?, ?, ?, ?);")) {
+					
+					while (rows.next()) {
+						copy.setInt(1, rows.getInt(1));
+						copy.setLong(2, rows.getLong(2));
+						copy.setBoolean(3, rows.getBoolean(3));
+						copy.setBytes(4, Base32.decode(rows.getString(4)));
+						copy.addBatch();
+					}
+					copy.executeBatch();
+				}
+				connection.commit();
+				s.execute("drop table TOTPSTORE;");
+			}
+			if (SchemaMigrations.tableExists(connection, "TOTPSTORE_V2")) s.execute("alter table TOTPSTORE_V2 rename to TOTPSTORE;");
+			
+			// Everything a long lived session lookup needs is in this index; the original index on just SESSIONKEY is then redundant.
+			s.execute("create index if not exists USERSESSIONSTORE_SESSIONKEY on USERSESSIONSTORE(SESSIONKEY, EXPIRES, USERID);");
+			for (String index : singleColumnIndexes(connection, "USERSESSIONSTORE", "SESSIONKEY")) {
+				s.execute("drop index " + index + ";");
+			}
+		}
+	}
+	
+	/**
+	 * Version 3: every user has a session epoch, and every long lived session records the epoch it was created in. A session is only valid while the two match,
+	 * so logging a user out everywhere is a single increment, however many sessions they have. The sessions left behind are deleted by the reaper once they expire.
+	 */
+	private static void addSessionEpochs(Connection connection) throws SQLException {
+		try (Statement s = connection.createStatement()) {
+			s.execute("alter table USERSTORE add column if not exists EPOCH int not null default 0;");
+			s.execute("alter table USERSESSIONSTORE add column if not exists EPOCH int not null default 0;");
+			s.execute("create index if not exists USERSESSIONSTORE_LOOKUP on USERSESSIONSTORE(SESSIONKEY, EXPIRES, USERID, EPOCH);");
+			s.execute("drop index if exists USERSESSIONSTORE_SESSIONKEY;");
+		}
+	}
+	
+	/**
+	 * Version 4: long lived session keys are signed, and carry the row they belong to; see {@link #parseSessionKey(String)}. Sessions are found by primary key from then on,
+	 * so the index on {@code SESSIONKEY} goes. Sessions created before can't be signed after the fact; they are deleted, and their users have to log in again.
+	 */
+	private static void signSessionKeys(Connection connection) throws SQLException {
+		try (Statement s = connection.createStatement()) {
+			s.execute("create table if not exists USERSTOREMETA (NAME varchar primary key, VALUE varbinary not null);");
+			s.execute("drop index if exists USERSESSIONSTORE_LOOKUP;");
+			s.execute("delete from USERSESSIONSTORE;");
+		}
+	}
+	
+	/**
+	 * The original index on {@code USERSESSIONSTORE(SESSIONKEY)} was created without a name, so it has to be looked up.
+	 */
+	private static List<String> singleColumnIndexes(Connection connection, String table, String column) throws SQLException {
+		Map<String, List<String>> columns = new HashMap<>();
+		try (ResultSet info = connection.getMetaData().getIndexInfo(null, null, table, false, false)) {
+			while (info.next()) {
+				String index = info.getString("INDEX_NAME");
+				if (index != null) columns.computeIfAbsent(index, k -> new ArrayList<>()).add(info.getString("COLUMN_NAME"));
+			}
+		}
+		
+		List<String> out = new ArrayList<>();
+		for (Map.Entry<String, List<String>> e : columns.entrySet()) {
+			if (e.getValue().equals(Collections.singletonList(column))) out.add(e.getKey());
+		}
+		return out;
+	}
+	
+	/**
+	 * Returns the key used to MAC long lived session keys, generating and storing it the first time. It lives in the database, so that sessions survive a restart.
+	 */
+	private byte[] loadSessionMacKey(Connection connection) throws SQLException {
+		try (Statement s = connection.createStatement()) {
+			try (ResultSet result = s.executeQuery("select VALUE from USERSTOREMETA where NAME = 'SESSIONMACKEY';")) {
+				if (result.next()) return result.getBytes(1);
+			}
+		}
+		
+		byte[] key = crypto.generateBytes(32);
+		try (PreparedStatement s = connection.prepareStatement("insert into USERSTOREMETA (NAME, VALUE) values ('SESSIONMACKEY', ?);")) {
+			s.setBytes(1, key);
+			s.executeUpdate();
 		}
 		connection.commit();
+		return key;
+	}
+	
+	/**
+	 * Loads a column (all usernames) into a Bloom filter, so that lookups of usernames that don't exist (typos, but also made up usernames) are answered without a query.
+	 * Runs at startup; after that, new usernames are added as they are created, and the filter is rebuilt (see {@link #rebuildUsernameFilterIfFull()})
+	 * once so many were added that it stops being useful.
+	 * <p>
+	 * <em>NB: </em>This assumes this store is the only one adding users to the database. If multiple servers share a user database, remove the filter:
+	 * a server would wrongly report users created by another server as nonexistent.
+	 */
+	private BloomFilter loadFilter(Connection connection, String table, String query) throws SQLException {
+		BloomFilter filter = newFilter(connection, table);
+		fillFilter(connection, filter, query);
+		return filter;
+	}
+	
+	/**
+	 * Creates an empty filter with room for plenty of growth beyond the rows {@code table} has now.
+	 */
+	private BloomFilter newFilter(Connection connection, String table) throws SQLException {
+		try (Statement s = connection.createStatement()) {
+			int rows;
+			try (ResultSet result = s.executeQuery("select count(*) from " + table + ";")) {
+				result.next();
+				rows = result.getInt(1);
+			}
+			connection.commit();
+			// At twice the expected size, the false positive rate is still below 20%; well before that, the filter is rebuilt.
+			return new BloomFilter(crypto, Math.max(100000, 2 * rows), 0.01);
+		}
+	}
+	
+	private void fillFilter(Connection connection, BloomFilter filter, String query) throws SQLException {
+		try (Statement s = connection.createStatement()) {
+			try (ResultSet result = s.executeQuery(query)) {
+				while (result.next()) filter.add(result.getString(1));
+			}
+			connection.commit();
+		}
 	}
 	
 	@Override public boolean userExists(String username) {
+		if (username == null || !usernames.mightContain(username)) {
+			filterRejections.incrementAndGet();
+			return false;
+		}
+		
 		boolean exists = false;
 		try (Connection connection = createConnection()) {
-			ensureUserTables(connection);
 			try (PreparedStatement checkUser = connection.prepareStatement("select ID from USERSTORE where USERNAME = ? limit 1;")) {
 				checkUser.setString(1, username);
 				try (ResultSet result = checkUser.executeQuery()) {
@@ -104,7 +335,6 @@ public class DbBasedUserStore implements UserStore {
 	@Override public boolean verifyPassword(String username, char[] password) {
 		String passHash = null;
 		try (Connection connection = createConnection()) {
-			ensureUserTables(connection);
 			try (PreparedStatement checkUser = connection.prepareStatement("select PASSWORDHASH from USERSTORE where USERNAME = ? limit 1;")) {
 				checkUser.setString(1, username);
 				try (ResultSet result = checkUser.executeQuery()) {
@@ -114,46 +344,160 @@ public class DbBasedUserStore implements UserStore {
 				}
 			}
 			connection.commit();
-			
-			if (passHash == null) {
-				return false;
+		} catch (SQLException e) {
+			throw new UserStoreException(e);
+		}
+		
+		// The connection is back in the pool before BCrypt runs; BCrypt is slow on purpose, and holding a connection all that time would starve other requests.
+		return passHash != null && verifyPasswordHash(username, passHash, password);
+	}
+	
+	@Override public boolean verifyPassword(LoginContext context, char[] password) {
+		return verifyPasswordHash(context.getUsername(), context.getPasswordHash(), password);
+	}
+	
+	private boolean verifyPasswordHash(String username, String passHash, char[] password) {
+		// Resubmitting the exact same wrong password is common (impatient users, naive bots); no need to run BCrypt again to reject it again.
+		if (failedPasswords.isKnownFailure(username, password, passHash)) {
+			return false;
+		}
+		
+		boolean verified = crypto.verifyPassword(passHash, password);
+		if (!verified) failedPasswords.recordFailure(username, password, passHash);
+		return verified;
+	}
+	
+	@Override public LoginContext loadLoginContext(String username) {
+		if (username == null || !usernames.mightContain(username)) {
+			filterRejections.incrementAndGet();
+			return null;
+		}
+		
+		try (Connection connection = createConnection()) {
+			try (PreparedStatement s = connection.prepareStatement("select U.PASSWORDHASH, T.SECRET, T.LOCKEDOUT, T.LASTTICK from USERSTORE U left join TOTPSTORE T on T.USERID = U.ID where U.USERNAME = ? limit 1;")) {
+				s.setString(1, username);
+				LoginContext context = null;
+				try (ResultSet result = s.executeQuery()) {
+					if (result.next()) {
+						byte[] secret = result.getBytes(2);
+						TotpData totpData = secret == null ? null : withPendingTick(username, new TotpData(Base32.encode(secret), result.getBoolean(3), result.getLong(4)));
+						context = new LoginContext(username, result.getString(1), totpData);
+					}
+				}
+				connection.commit();
+				return context;
 			}
-			return crypto.verifyPassword(passHash, password);
 		} catch (SQLException e) {
 			throw new UserStoreException(e);
 		}
 	}
 	
+	/**
+	 * Returns the number of BCrypt runs skipped because the exact same wrong password was submitted again shortly before.
+	 */
+	public long getSkippedPasswordChecks() {
+		return failedPasswords.getHits();
+	}
+	
+	/**
+	 * The number of lookups of usernames and long lived sessions that were answered 'no such thing' without a query: by the Bloom filter for usernames,
+	 * and by the MAC and absolute expiry carried in the key itself for sessions.
+	 * <p>
+	 * <em>NB: </em>Only a session's absolute expiry (at most 30 days after it was created) is in its key. A session that has gone unused past its 5 day sliding expiry,
+	 * but is still within that cap, passes the in-memory check and still costs a query; it isn't counted here.
+	 */
+	public long getFilterRejections() {
+		return filterRejections.get();
+	}
+	
+	/** The estimated chance that a nonexistent username still needs a query to find out it doesn't exist. */
+	public double getUsernameFilterFalsePositiveRate() {
+		return usernames.getFalsePositiveRate();
+	}
+	
+	/** The memory used by the Bloom filter, in bytes. */
+	public long getFilterSizeInBytes() {
+		return usernames.getSizeInBytes();
+	}
+	
 	@Override public void createUserWithTotp(String username, char[] password, String secret, long lastSuccessfulTick) {
+		String passwordHash = crypto.hashPassword(password);
+		// Holding the read lock from adding the username until the insert is committed means a rebuild of the filter either sees the new row, or the add.
+		usernameCreation.readLock().lock();
 		try (Connection connection = createConnection()) {
-			ensureUserTables(connection);
+			// Added before the insert; if the insert fails, that just costs a query later on.
+			synchronized (usernameFilterLock) {
+				usernames.add(username);
+				if (rebuildingUsernames != null) rebuildingUsernames.add(username);
+			}
 			try (
 				PreparedStatement createUser = connection.prepareStatement("insert into USERSTORE (USERNAME, PASSWORDHASH) values (?, ?);");
-				PreparedStatement createTotp = connection.prepareStatement("insert into TOTPSTORE (USERNAME, SECRET, LASTTICK, LOCKEDOUT) values (?, ?, ?, ?);")) {
+				PreparedStatement createTotp = connection.prepareStatement("insert into TOTPSTORE (USERID, SECRET, LASTTICK, LOCKEDOUT) select ID, ?, ?, ? from USERSTORE where USERNAME = ?;")) {
 				createUser.setString(1, username);
-				createUser.setString(2, crypto.hashPassword(password));
-				createTotp.setString(1, username);
-				createTotp.setString(2, secret);
-				createTotp.setLong(3, lastSuccessfulTick);
-				createTotp.setBoolean(4, false);
+				createUser.setString(2, passwordHash);
+				createTotp.setBytes(1, Base32.decode(secret));
+				createTotp.setLong(2, lastSuccessfulTick);
+				createTotp.setBoolean(3, false);
+				createTotp.setString(4, username);
 				createUser.executeUpdate();
 				createTotp.executeUpdate();
 				connection.commit();
 			}
 		} catch (SQLException e) {
 			throw new UserStoreException(e);
+		} finally {
+			usernameCreation.readLock().unlock();
+		}
+		rebuildUsernameFilterIfFull();
+	}
+	
+	/**
+	 * The username filter has a fixed size; as more and more users sign up its false positive rate climbs, until every lookup needs a query anyway.
+	 * Once it's past {@code USERNAME_FILTER_REBUILD_RATE}, this replaces it with a new filter sized for the current number of users. The signup that crosses the line pays for it.
+	 */
+	private void rebuildUsernameFilterIfFull() {
+		if (usernames.getFalsePositiveRate() <= USERNAME_FILTER_REBUILD_RATE || !rebuildingUsernameFilter.compareAndSet(false, true)) return;
+		try {
+			BloomFilter rebuilt;
+			try (Connection connection = createConnection()) {
+				rebuilt = newFilter(connection, "USERSTORE");
+			}
+			// Waits for signups in progress to commit; every signup after this point also adds its username to the new filter.
+			// No connection is held while waiting, as those signups may still need one.
+			usernameCreation.writeLock().lock();
+			try {
+				synchronized (usernameFilterLock) {
+					rebuildingUsernames = rebuilt;
+				}
+			} finally {
+				usernameCreation.writeLock().unlock();
+			}
+			try (Connection connection = createConnection()) {
+				fillFilter(connection, rebuilt, "select USERNAME from USERSTORE;");
+			}
+			synchronized (usernameFilterLock) {
+				usernames = rebuilt;
+				rebuildingUsernames = null;
+			}
+		} catch (SQLException e) {
+			// The old filter is still correct, just less effective; try again with the next signup.
+			synchronized (usernameFilterLock) {
+				rebuildingUsernames = null;
+			}
+			e.printStackTrace();
+		} finally {
+			rebuildingUsernameFilter.set(false);
 		}
 	}
 	
 	@Override public void enableTotp(String username, String secret, long lastSuccessfulTick) {
 		try (Connection connection = createConnection()) {
-			ensureUserTables(connection);
-			try (PreparedStatement s = connection.prepareStatement("insert into TOTPSTORE (USERNAME, SECRET, LASTTICK, LOCKEDOUT) values (?, ?, ?, ?);")) {
-				s.setString(1, username);
-				s.setString(2, secret);
-				s.setLong(3, lastSuccessfulTick);
-				s.setBoolean(4, false);
-				s.executeUpdate();
+			try (PreparedStatement s = connection.prepareStatement("insert into TOTPSTORE (USERID, SECRET, LASTTICK, LOCKEDOUT) select ID, ?, ?, ? from USERSTORE where USERNAME = ?;")) {
+				s.setBytes(1, Base32.decode(secret));
+				s.setLong(2, lastSuccessfulTick);
+				s.setBoolean(3, false);
+				s.setString(4, username);
+				if (s.executeUpdate() == 0) throw new UserStoreException("user does not exist: " + username);
 				connection.commit();
 			}
 		} catch (SQLException e) {
@@ -162,18 +506,20 @@ public class DbBasedUserStore implements UserStore {
 	}
 	
 	@Override public TotpData getTotpData(String username) {
+		if (username == null || !usernames.mightContain(username)) {
+			filterRejections.incrementAndGet();
+			return null;
+		}
+		
 		try (Connection connection = createConnection()) {
-			ensureUserTables(connection);
-			try (PreparedStatement s = connection.prepareStatement("select SECRET, LOCKEDOUT, LASTTICK from TOTPSTORE where USERNAME = ?;")) {
+			try (PreparedStatement s = connection.prepareStatement("select T.SECRET, T.LOCKEDOUT, T.LASTTICK from TOTPSTORE T inner join USERSTORE U on U.ID = T.USERID where U.USERNAME = ?;")) {
 				s.setString(1, username);
+				TotpData out = null;
 				try (ResultSet results = s.executeQuery()) {
-					if (!results.next()) return null;
-					TotpData out = new TotpData(results.getString(1), results.getBoolean(2), results.getLong(3));
-					results.close();
-					s.close();
-					connection.commit();
-					return out;
+					if (results.next()) out = withPendingTick(username, new TotpData(Base32.encode(results.getBytes(1)), results.getBoolean(2), results.getLong(3)));
 				}
+				connection.commit();
+				return out;
 			}
 		} catch (SQLException e) {
 			throw new UserStoreException(e);
@@ -182,8 +528,7 @@ public class DbBasedUserStore implements UserStore {
 	
 	@Override public void updateLastSuccessfulTick(String username, long lastSuccessfulTick) {
 		try (Connection connection = createConnection()) {
-			ensureUserTables(connection);
-			try (PreparedStatement s = connection.prepareStatement("update TOTPSTORE set LASTTICK = ? where USERNAME = ? and not LOCKEDOUT;")) {
+			try (PreparedStatement s = connection.prepareStatement("update TOTPSTORE set LASTTICK = ? where USERID = (select ID from USERSTORE where USERNAME = ?) and not LOCKEDOUT;")) {
 				s.setLong(1, lastSuccessfulTick);
 				s.setString(2, username);
 				int upd = s.executeUpdate();
@@ -197,10 +542,50 @@ public class DbBasedUserStore implements UserStore {
 		}
 	}
 	
+	@Override public boolean advanceLastSuccessfulTick(String username, long tick) {
+		if (tickWriteBehind != null) return tickWriteBehind.advance(username, tick);
+		
+		try (Connection connection = createConnection()) {
+			// The condition and the write are a single statement, so there is no window between checking the last tick and updating it.
+			try (PreparedStatement s = connection.prepareStatement("update TOTPSTORE set LASTTICK = ? where USERID = (select ID from USERSTORE where USERNAME = ?) and LASTTICK < ? and not LOCKEDOUT;")) {
+				s.setLong(1, tick);
+				s.setString(2, username);
+				s.setLong(3, tick);
+				int upd = s.executeUpdate();
+				connection.commit();
+				return upd == 1;
+			}
+		} catch (SQLException e) {
+			throw new UserStoreException(e);
+		}
+	}
+	
+	/**
+	 * With write-behind on, the database may not have the latest tick yet; the in-memory one is authoritative.
+	 */
+	private TotpData withPendingTick(String username, TotpData data) {
+		Long pending = tickWriteBehind == null ? null : tickWriteBehind.getPending(username);
+		if (pending == null || pending <= data.getLastSuccessfulTick()) return data;
+		return new TotpData(data.getSecret(), data.isLockedOut(), pending);
+	}
+	
+	/**
+	 * The number of transactions used to write TOTP ticks with write-behind on (each writes the ticks of any number of logins); 0 if it's off.
+	 */
+	public long getTickFlushCount() {
+		return tickWriteBehind == null ? 0L : tickWriteBehind.getFlushCount();
+	}
+	
+	/**
+	 * The number of TOTP ticks written with write-behind on; 0 if it's off.
+	 */
+	public long getFlushedTickCount() {
+		return tickWriteBehind == null ? 0L : tickWriteBehind.getFlushedTickCount();
+	}
+	
 	@Override public void markLockedOut(String username) {
 		try (Connection connection = createConnection()) {
-			ensureUserTables(connection);
-			try (PreparedStatement write = connection.prepareStatement("update TOTPSTORE set LOCKEDOUT = ? where USERNAME = ?;")) {
+			try (PreparedStatement write = connection.prepareStatement("update TOTPSTORE set LOCKEDOUT = ? where USERID = (select ID from USERSTORE where USERNAME = ?);")) {
 				write.setBoolean(1, true);
 				write.setString(2, username);
 				write.executeUpdate();
@@ -213,8 +598,7 @@ public class DbBasedUserStore implements UserStore {
 	
 	@Override public void clearLockedOut(String username) {
 		try (Connection connection = createConnection()) {
-			ensureUserTables(connection);
-			try (PreparedStatement write = connection.prepareStatement("update TOTPSTORE set LOCKEDOUT = ? where USERNAME = ?;")) {
+			try (PreparedStatement write = connection.prepareStatement("update TOTPSTORE set LOCKEDOUT = ? where USERID = (select ID from USERSTORE where USERNAME = ?);")) {
 				write.setBoolean(1, false);
 				write.setString(2, username);
 				write.executeUpdate();
@@ -227,57 +611,70 @@ public class DbBasedUserStore implements UserStore {
 	
 	@Override public String createNewLongLivedSession(String username) {
 		try (Connection connection = createConnection()) {
-			ensureUserTables(connection);
 			try (
-				PreparedStatement findUserId = connection.prepareStatement("select ID from USERSTORE where USERNAME = ? limit 1;");
-				PreparedStatement addSessionKey = connection.prepareStatement("insert into USERSESSIONSTORE (USERID, SESSIONKEY, EXPIRES) values (?, ?, ?);")) {
+				PreparedStatement findUserId = connection.prepareStatement("select ID, EPOCH from USERSTORE where USERNAME = ? limit 1;");
+				PreparedStatement addSessionKey = connection.prepareStatement("insert into USERSESSIONSTORE (USERID, SESSIONKEY, EXPIRES, EPOCH) values (?, ?, ?, ?);", Statement.RETURN_GENERATED_KEYS)) {
 				
 				findUserId.setString(1, username);
 				Integer userId = null;
+				int epoch = 0;
 				try (ResultSet results = findUserId.executeQuery()) {
 					if (results.next()) {
 						userId = results.getInt(1);
+						epoch = results.getInt(2);
 					}
 				}
 				
 				if (userId == null) {
 					throw new UserStoreException("user does not exist: " + username);
 				}
+				long now = System.currentTimeMillis();
+				String random = crypto.generateRandomKey(USERSESSION_RANDOM_LENGTH);
 				addSessionKey.setInt(1, userId);
-				String sessionKey = crypto.generateRandomKey(32);
-				addSessionKey.setString(2, sessionKey);
-				addSessionKey.setTimestamp(3, new Timestamp(System.currentTimeMillis() + DEFAULT_USERSESSION_EXPIRY));
+				addSessionKey.setString(2, random);
+				addSessionKey.setTimestamp(3, new Timestamp(now + DEFAULT_USERSESSION_EXPIRY));
+				addSessionKey.setInt(4, epoch);
 				addSessionKey.executeUpdate();
+				int id;
+				try (ResultSet result = addSessionKey.getGeneratedKeys()) {
+					result.next();
+					id = result.getInt(1);
+				}
 				connection.commit();
-				return sessionKey;
+				
+				String signed = id + "." + userId + "." + (now + MAX_USERSESSION_LIFETIME) + "." + random;
+				return signed + "." + sessionMac(signed);
 			}
 		} catch (SQLException e) {
 			throw new UserStoreException(e);
 		}
 	}
 	
-	@Override public void destroyLongLivedSession(String sessionId) {
+	@Override public String destroyLongLivedSession(String sessionId) {
+		SessionKey key = parseSessionKey(sessionId);
+		if (key == null) return null;
+		
 		try (Connection connection = createConnection()) {
-			ensureUserTables(connection);
 			try (
-				PreparedStatement findUserId = connection.prepareStatement("select USERID from USERSESSIONSTORE where SESSIONKEY = ? limit 1;");
-				PreparedStatement deleteSessions = connection.prepareStatement("delete from USERSESSIONSTORE where USERID = ?;")) {
+				PreparedStatement findName = connection.prepareStatement("select U.USERNAME from USERSESSIONSTORE S inner join USERSTORE U on S.USERID = U.ID where S.ID = ? and S.USERID = ? and S.SESSIONKEY = ?;");
+				PreparedStatement nextEpoch = connection.prepareStatement("update USERSTORE set EPOCH = EPOCH + 1 where ID = ?;")) {
 				
-				findUserId.setString(1, sessionId);
-				Integer userId = null;
-				try (ResultSet results = findUserId.executeQuery()) {
-					if (results.next()) {
-						userId = results.getInt(1);
-					}
+				// The session may have expired already (but not been reaped yet); the user still gets logged out everywhere.
+				findName.setInt(1, key.id);
+				findName.setInt(2, key.userId);
+				findName.setString(3, key.random);
+				String username = null;
+				try (ResultSet results = findName.executeQuery()) {
+					if (results.next()) username = results.getString(1);
 				}
 				
-				if (userId == null) {
-					connection.commit();
-					return;
+				if (username != null) {
+					// Moving the user on to the next epoch ends all of their sessions at once; no need to find and delete them.
+					nextEpoch.setInt(1, key.userId);
+					nextEpoch.executeUpdate();
 				}
-				deleteSessions.setInt(1, userId);
-				deleteSessions.executeUpdate();
 				connection.commit();
+				return username;
 			}
 		} catch (SQLException e) {
 			throw new UserStoreException(e);
@@ -285,22 +682,109 @@ public class DbBasedUserStore implements UserStore {
 	}
 	
 	@Override public String getUserFromSessionKey(String sessionKey) {
+		LongLivedSession session = findLongLivedSession(sessionKey);
+		return session == null ? null : session.getUsername();
+	}
+	
+	@Override public LongLivedSession findLongLivedSession(String sessionKey) {
+		SessionKey key = parseSessionKey(sessionKey);
+		if (key == null) {
+			filterRejections.incrementAndGet();
+			return null;
+		}
+		
 		try (Connection connection = createConnection()) {
-			ensureUserTables(connection);
-			String username = null;
-			try (PreparedStatement findName = connection.prepareStatement("select USERNAME from USERSESSIONSTORE inner join USERSTORE on USERSESSIONSTORE.USERID = USERSTORE.ID where SESSIONKEY = ? and EXPIRES >= ? limit 1;")) {
-				findName.setString(1, sessionKey);
-				findName.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+			LongLivedSession session = null;
+			try (PreparedStatement findName = connection.prepareStatement("select U.USERNAME, S.EXPIRES, S.EPOCH from USERSESSIONSTORE S inner join USERSTORE U on S.USERID = U.ID where S.ID = ? and S.USERID = ? and S.SESSIONKEY = ? and S.EXPIRES >= ? and S.EPOCH = U.EPOCH;")) {
+				findName.setInt(1, key.id);
+				findName.setInt(2, key.userId);
+				findName.setString(3, key.random);
+				findName.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
 				try (ResultSet results = findName.executeQuery()) {
 					if (results.next()) {
-						username = results.getString(1);
+						session = new LongLivedSession(results.getString(1), extendIfDue(key, results.getTimestamp(2).getTime()), results.getInt(3));
 					}
 				}
 				connection.commit();
-				return username;
+				return session;
 			}
 		} catch (SQLException e) {
 			throw new UserStoreException(e);
 		}
 	}
+	
+	/**
+	 * A long lived session key, taken apart. The key is {@code id.userId.notAfter.random.mac}: the session's row, its user, the moment it ends no matter what
+	 * (in milliseconds since the epoch), the random value stored in the row, and a MAC over all of that.
+	 */
+	private static final class SessionKey {
+		final int id;
+		final int userId;
+		final long notAfter;
+		final String random;
+		
+		SessionKey(int id, int userId, long notAfter, String random) {
+			this.id = id;
+			this.userId = userId;
+			this.notAfter = notAfter;
+			this.random = random;
+		}
+	}
+	
+	/**
+	 * Returns {@code null} if the key is malformed, forged, or past its absolute expiry; no database access is needed to find out.
+	 * 
+	 * Only the absolute expiry ({@code MAX_USERSESSION_LIFETIME} after creation) can be checked here. The sliding expiry in the row's {@code EXPIRES} column
+	 * (normally 5 days after last use) isn't in the key, so a key that passes may still belong to a session that has expired; only the query can tell.
+	 */
+	private SessionKey parseSessionKey(String sessionKey) {
+		if (sessionKey == null) return null;
+		int last = sessionKey.lastIndexOf('.');
+		if (last == -1) return null;
+		
+		// The MAC covers the key exactly as it was handed out, so a valid key can't be rewritten into a different one that is still valid (say, '007' for '7').
+		byte[] expected = sessionMac(sessionKey.substring(0, last)).getBytes(StandardCharsets.US_ASCII);
+		byte[] actual = sessionKey.substring(last + 1).getBytes(StandardCharsets.US_ASCII);
+		// SECURITY NOTE: Compare in constant time, so response times don't reveal how much of a forged MAC was correct.
+		if (!MessageDigest.isEqual(expected, actual)) return null;
+		
+		String[] parts = sessionKey.substring(0, last).split("\\.", -1);
+		if (parts.length != 4) return null;
+		SessionKey key;
+		try {
+			key = new SessionKey(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Long.parseLong(parts[2]), parts[3]);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return key.notAfter < System.currentTimeMillis() ? null : key;
+	}
+	
+	private String sessionMac(String signed) {
+		byte[] mac = crypto.hmac(sessionMacKey, signed.getBytes(StandardCharsets.US_ASCII));
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(mac, USERSESSION_MAC_LENGTH));
+	}
+	
+	/**
+	 * Returns the session's expiry, after extending it to a full lifetime from now (but never past the absolute expiry in its key) if it has less than {@code renewSessionsBelow} left.
+	 * The extension is only recorded in memory here; see {@link SessionExtender}.
+	 */
+	private long extendIfDue(SessionKey key, long expiresAt) {
+		if (sessionExtender == null) return expiresAt;
+		Long pending = sessionExtender.getPending(key.id);
+		if (pending != null && pending > expiresAt) expiresAt = pending;
+		
+		long now = System.currentTimeMillis();
+		if (expiresAt - now >= renewSessionsBelow) return expiresAt;
+		long extended = Math.min(now + DEFAULT_USERSESSION_EXPIRY, key.notAfter);
+		if (extended <= expiresAt) return expiresAt;
+		sessionExtender.extend(key.id, extended);
+		return extended;
+	}
+	
+	/**
+	 * The number of long lived session expiries pushed back because the session was in use; 0 if sessions have a fixed lifetime.
+	 */
+	public long getSessionExtensionCount() {
+		return sessionExtender == null ? 0L : sessionExtender.getExtensionCount();
+	}
 }
@@ -0,0 +1,67 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically deletes expired rows from a table with an (indexed) {@code EXPIRES} column, in the background.
+ * 
+ * Rows are deleted in small chunks, each in its own transaction, so the reaper never holds locks for long, no matter how many rows have piled up.
+ * Requests never delete expired rows themselves; they just ignore them ({@code where EXPIRES >= now()}).
+ */
+final class ExpiryReaper {
+	interface ConnectionSource {
+		Connection get() throws SQLException;
+	}
+	
+	private final ConnectionSource connections;
+	private final String deleteSql;
+	private final int chunkSize;
+	private final ScheduledExecutorService scheduler;
+	
+	ExpiryReaper(ConnectionSource connections, String table, long intervalMillis, int chunkSize) {
+		this.connections = connections;
+		this.deleteSql = "delete from " + table + " where EXPIRES < ? limit " + chunkSize + ";";
+		this.chunkSize = chunkSize;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "expiry-reaper-" + table.toLowerCase());
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::reap, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Deletes all expired rows, one chunk at a time.
+	 * 
+	 * @return The number of rows deleted.
+	 */
+	int reap() {
+		int total = 0;
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		try (Connection connection = connections.get()) {
+			int deleted;
+			do {
+				try (PreparedStatement s = connection.prepareStatement(deleteSql)) {
+					s.setTimestamp(1, now);
+					deleted = s.executeUpdate();
+				}
+				connection.commit();
+				total += deleted;
+			} while (deleted >= chunkSize);
+		} catch (SQLException | RuntimeException e) {
+			// Try again next time; an exception escaping here would silently cancel all future runs.
+			e.printStackTrace();
+		}
+		return total;
+	}
+	
+	void shutdown() {
+		scheduler.shutdownNow();
+	}
+}
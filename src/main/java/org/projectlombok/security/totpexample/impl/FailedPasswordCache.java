@@ -0,0 +1,98 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.projectlombok.security.totpexample.Crypto;
+
+/**
+ * Remembers, for a short while, which (username, password) pairs were just rejected, so that resubmitting the exact same wrong password doesn't cost another BCrypt run.
+ * 
+ * SECURITY NOTE: Passwords are never stored here, not even hashed with a plain hash (which would be easy to brute force). Instead we store an HMAC keyed with a random 'pepper'
+ * that only lives in this process's memory. The stored password hash is part of the fingerprint, so the moment a user's password hash changes, all remembered failures for that user
+ * stop matching; a correct password can never be rejected by this cache.
+ */
+class FailedPasswordCache {
+	private static final long DEFAULT_TTL = TimeUnit.SECONDS.toMillis(30);
+	private static final int DEFAULT_MAX_ENTRIES = 10_000;
+	
+	private final Crypto crypto;
+	private final byte[] pepper;
+	private final long ttl;
+	private final int maxEntries;
+	private final Map<String, Long> failures = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	
+	FailedPasswordCache(Crypto crypto) {
+		this(crypto, DEFAULT_TTL, DEFAULT_MAX_ENTRIES);
+	}
+	
+	FailedPasswordCache(Crypto crypto, long ttl, int maxEntries) {
+		this.crypto = crypto;
+		this.pepper = crypto.generateBytes(32);
+		this.ttl = ttl;
+		this.maxEntries = maxEntries;
+	}
+	
+	/**
+	 * @return {@code true} if this exact password was rejected for this user (with this exact stored hash) within the last few seconds.
+	 */
+	boolean isKnownFailure(String username, char[] password, String passHash) {
+		String fingerprint = fingerprint(username, password, passHash);
+		Long expires = failures.get(fingerprint);
+		if (expires == null) return false;
+		if (expires < System.currentTimeMillis()) {
+			failures.remove(fingerprint, expires);
+			return false;
+		}
+		hits.incrementAndGet();
+		return true;
+	}
+	
+	void recordFailure(String username, char[] password, String passHash) {
+		long now = System.currentTimeMillis();
+		if (failures.size() >= maxEntries) {
+			evictExpired(now);
+			// Still full? Then we're under some sort of flood; simply stop remembering until entries expire. That only costs BCrypt runs, never correctness.
+			if (failures.size() >= maxEntries) return;
+		}
+		failures.put(fingerprint(username, password, passHash), now + ttl);
+	}
+	
+	/** The number of BCrypt runs that were skipped because the submitted password was a known failure. */
+	long getHits() {
+		return hits.get();
+	}
+	
+	int size() {
+		return failures.size();
+	}
+	
+	private void evictExpired(long now) {
+		Iterator<Long> it = failures.values().iterator();
+		while (it.hasNext()) {
+			if (it.next() < now) it.remove();
+		}
+	}
+	
+	private String fingerprint(String username, char[] password, String passHash) {
+		ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+		byte[] passwordBytes = new byte[encoded.remaining()];
+		encoded.get(passwordBytes);
+		try {
+			byte[] mac = crypto.hmac(pepper, username.getBytes(StandardCharsets.UTF_8), passwordBytes, passHash.getBytes(StandardCharsets.UTF_8));
+			return Base64.getEncoder().encodeToString(mac);
+		} finally {
+			Arrays.fill(passwordBytes, (byte) 0);
+			if (encoded.hasArray()) Arrays.fill(encoded.array(), (byte) 0);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel: a ring of buckets, each covering one tick of time. Scheduling an expiry is dropping it into the bucket its expiry time hashes to; every tick, only
+ * the bucket for that tick is looked at. Expiries further away than one revolution of the wheel simply sit in their bucket for a few revolutions.
+ * 
+ * Compared to periodically scanning everything for expired items, the cost of expiring is proportional to what actually expires, not to how much is stored.
+ * 
+ * @param <T> The type of the items that expire.
+ */
+final class HashedTimingWheel<T> {
+	private static final class Timeout<T> {
+		final T item;
+		final long expiresAt;
+		
+		Timeout(T item, long expiresAt) {
+			this.item = item;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	private final long tickMillis;
+	private final Queue<Timeout<T>>[] buckets;
+	private final Consumer<T> onExpiry;
+	private final ScheduledExecutorService ticker;
+	private long lastTick;
+	
+	/**
+	 * @param tickMillis The resolution of the wheel; items expire at most this long after their expiry time.
+	 * @param wheelSize The amount of buckets.
+	 * @param onExpiry Called (on the wheel's own thread) for each item that has expired.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	HashedTimingWheel(String name, long tickMillis, int wheelSize, Consumer<T> onExpiry) {
+		this.tickMillis = tickMillis;
+		this.buckets = new Queue[wheelSize];
+		for (int i = 0; i < wheelSize; i++) buckets[i] = new ConcurrentLinkedQueue<>();
+		this.onExpiry = onExpiry;
+		this.lastTick = System.currentTimeMillis() / tickMillis;
+		this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		});
+		ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	void schedule(T item, long expiresAt) {
+		// Round up, so that by the time this bucket is processed, the expiry time has certainly passed.
+		long tick = (expiresAt + tickMillis - 1) / tickMillis;
+		buckets[bucketFor(tick)].add(new Timeout<>(item, expiresAt));
+	}
+	
+	void shutdown() {
+		ticker.shutdownNow();
+	}
+	
+	private int bucketFor(long tick) {
+		return (int) (tick % buckets.length);
+	}
+	
+	private void advance() {
+		long now = System.currentTimeMillis();
+		long currentTick = now / tickMillis;
+		// If the ticker thread was starved for a while, catch up on every tick we missed (but never more than a full revolution; that already covers every bucket).
+		long from = Math.max(lastTick + 1, currentTick - buckets.length + 1);
+		for (long tick = from; tick <= currentTick; tick++) {
+			Iterator<Timeout<T>> it = buckets[bucketFor(tick)].iterator();
+			while (it.hasNext()) {
+				Timeout<T> timeout = it.next();
+				if (timeout.expiresAt > now) continue; // Due in a later revolution of the wheel.
+				it.remove();
+				try {
+					onExpiry.accept(timeout.item);
+				} catch (RuntimeException e) {
+					// Never let one failure kill the ticker thread; that would stop all expiry.
+					e.printStackTrace();
+				}
+			}
+		}
+		lastTick = currentTick;
+	}
+}
@@ -0,0 +1,117 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.projectlombok.security.totpexample.Session;
+import org.projectlombok.security.totpexample.SessionNotFoundException;
+
+/**
+ * This is the implementation of the {@code Session} interface that goes with {@link InMemorySessionStore}.
+ */
+class InMemorySession implements Session {
+	/**
+	 * The stored form of a session. Sessions hold a handful of tiny values, so instead of a map, they are kept as a flat array of alternating keys and values.
+	 */
+	static final class Record {
+		final String key;
+		final long expiresAt;
+		private volatile String[] entries = new String[0];
+		
+		Record(String key, long expiresAt) {
+			this.key = key;
+			this.expiresAt = expiresAt;
+		}
+		
+		boolean isExpired() {
+			return expiresAt < System.currentTimeMillis();
+		}
+		
+		String get(String k) {
+			String[] e = entries;
+			for (int i = 0; i < e.length; i += 2) {
+				if (e[i].equals(k)) return e[i + 1];
+			}
+			return null;
+		}
+		
+		synchronized void put(String k, String v) {
+			String[] e = entries;
+			for (int i = 0; i < e.length; i += 2) {
+				if (e[i].equals(k)) {
+					String[] updated = e.clone();
+					updated[i + 1] = v;
+					entries = updated;
+					return;
+				}
+			}
+			String[] updated = Arrays.copyOf(e, e.length + 2);
+			updated[e.length] = k;
+			updated[e.length + 1] = v;
+			entries = updated;
+		}
+		
+		synchronized void putAll(Map<String, String> values) {
+			String[] e = entries;
+			for (Map.Entry<String, String> entry : values.entrySet()) e = SessionPayloads.with(e, 0, entry.getKey(), entry.getValue());
+			entries = e;
+		}
+		
+		Map<String, String> toMap() {
+			String[] e = entries;
+			Map<String, String> out = new HashMap<>();
+			for (int i = 0; i < e.length; i += 2) out.put(e[i], e[i + 1]);
+			return Collections.unmodifiableMap(out);
+		}
+	}
+	
+	private final InMemorySessionStore store;
+	private final Record record;
+	
+	InMemorySession(InMemorySessionStore store, Record record) {
+		this.store = store;
+		this.record = record;
+	}
+	
+	@Override public String getSessionKey() {
+		return record.key;
+	}
+	
+	@Override public Session put(String key, String value) {
+		if (key == null) throw new NullPointerException("key");
+		if (value == null) throw new NullPointerException("value");
+		if (key.isEmpty()) throw new IllegalArgumentException("key is empty");
+		
+		if (!store.isLive(record)) throw new SessionNotFoundException(record.key);
+		record.put(key, value);
+		return this;
+	}
+	
+	@Override public Session putAll(Map<String, String> values) {
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			if (e.getKey() == null) throw new NullPointerException("key");
+			if (e.getValue() == null) throw new NullPointerException("value");
+			if (e.getKey().isEmpty()) throw new IllegalArgumentException("key is empty");
+		}
+		
+		if (!store.isLive(record)) throw new SessionNotFoundException(record.key);
+		record.putAll(values);
+		return this;
+	}
+	
+	@Override public String getOrDefault(String key, String defaultValue) {
+		if (key == null) throw new NullPointerException("key");
+		if (key.isEmpty()) throw new IllegalArgumentException("key is empty");
+		
+		if (!store.isLive(record)) throw new SessionNotFoundException(record.key);
+		String value = record.get(key);
+		return value != null ? value : defaultValue;
+	}
+	
+	@Override public Map<String, String> snapshot() {
+		if (!store.isLive(record)) throw new SessionNotFoundException(record.key);
+		return record.toMap();
+	}
+}
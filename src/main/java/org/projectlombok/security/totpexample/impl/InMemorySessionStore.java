@@ -0,0 +1,69 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.projectlombok.security.totpexample.Crypto;
+import org.projectlombok.security.totpexample.Session;
+import org.projectlombok.security.totpexample.SessionNotFoundException;
+import org.projectlombok.security.totpexample.SessionStore;
+
+/**
+ * This is a purely in-memory implementation of the {@code SessionStore} interface: no files, no connections.
+ * 
+ * Sessions are removed by a hashed timing wheel shortly after they expire, instead of by sweeping the whole store.
+ * <p>
+ * <em>NB: </em>All sessions are lost when the server restarts, and sessions are not shared between servers. For a single server that's fine: these sessions live for an hour at most,
+ * and losing one just means a user has to start the login or signup over.
+ */
+public class InMemorySessionStore implements SessionStore {
+	private final Crypto crypto;
+	private final ConcurrentMap<String, InMemorySession.Record> sessions = new ConcurrentHashMap<>();
+	private final HashedTimingWheel<InMemorySession.Record> expiry;
+	
+	public InMemorySessionStore(Crypto crypto) {
+		if (crypto == null) throw new NullPointerException("crypto");
+		this.crypto = crypto;
+		// 1 second per tick and 1024 ticks per revolution: every 10 minute - 1 hour session is seen a few times at most before it expires.
+		this.expiry = new HashedTimingWheel<>("session-expiry", TimeUnit.SECONDS.toMillis(1), 1024, record -> sessions.remove(record.key, record));
+	}
+	
+	@Override public Session create(long ttl) {
+		long expiresAt = System.currentTimeMillis() + ttl;
+		InMemorySession.Record record;
+		do {
+			record = new InMemorySession.Record(crypto.generateRandomKey(12), expiresAt);
+		} while (sessions.putIfAbsent(record.key, record) != null);
+		expiry.schedule(record, expiresAt);
+		return new InMemorySession(this, record);
+	}
+	
+	@Override public Session get(String sessionKey) {
+		InMemorySession.Record record = sessionKey == null ? null : sessions.get(sessionKey);
+		if (record == null || record.isExpired()) throw new SessionNotFoundException(sessionKey);
+		return new InMemorySession(this, record);
+	}
+	
+	@Override public Map<String, String> getAndInvalidate(String sessionKey) {
+		InMemorySession.Record record = sessionKey == null ? null : sessions.remove(sessionKey);
+		if (record == null || record.isExpired()) throw new SessionNotFoundException(sessionKey);
+		return record.toMap();
+	}
+	
+	@Override public void invalidate(String sessionKey) {
+		if (sessionKey != null) sessions.remove(sessionKey);
+	}
+	
+	boolean isLive(InMemorySession.Record record) {
+		return !record.isExpired() && sessions.get(record.key) == record;
+	}
+	
+	/**
+	 * Returns the amount of sessions held in memory, including ones that have expired but haven't been removed yet.
+	 */
+	public int size() {
+		return sessions.size();
+	}
+}
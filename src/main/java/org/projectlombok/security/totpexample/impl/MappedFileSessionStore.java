@@ -0,0 +1,318 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.projectlombok.security.totpexample.Crypto;
+import org.projectlombok.security.totpexample.Session;
+import org.projectlombok.security.totpexample.SessionNotFoundException;
+import org.projectlombok.security.totpexample.SessionStore;
+import org.projectlombok.security.totpexample.SessionStoreException;
+
+/**
+ * This is an implementation of the {@code SessionStore} interface that stores sessions in a memory-mapped file; sessions survive a restart (such as a redeploy),
+ * but no database connections are involved, and the sessions themselves don't live on the java heap.
+ * Slots are copied in and out with bulk reads and writes through a single reused buffer, and finding a session compares its key against the slot's bytes in place,
+ * without decoding the slot; only the values handed back to the caller are turned into strings.
+ * <p>
+ * The file is a fixed number of fixed-size slots. A session lives in one slot: state, expiry, and all its keys and values (see {@link SessionPayloads}), guarded by a CRC.
+ * The slots double as a hash index on session key: a session is stored in the first usable slot at or after the slot its key hashes to (open addressing with linear probing).
+ * Expired slots are simply reused when a new session needs a slot, so the file never needs compacting.
+ * <p>
+ * An update doesn't overwrite the session's slot: the new version goes to another usable slot along the key's probe sequence, and only once that is completely written
+ * is the old slot discarded. Each version carries a generation number one higher than the one before.
+ * <p>
+ * On startup every slot's CRC is checked; slots that were half-written when the server went down are discarded, so an interrupted update leaves the session as it was
+ * before that update. If the server went down in between writing the new version and discarding the old one, both are intact, and the old one (the lower generation) is discarded.
+ * Only if there is no other usable slot within reach is a session updated in place; if the server dies during such an update, that session is lost.
+ * <p>
+ * <em>NB: </em>Writes go to the OS's page cache; they survive the server process crashing or being restarted, but not the machine itself losing power.
+ */
+public class MappedFileSessionStore implements SessionStore {
+	private static final int MAGIC = 0x544F5450; // 'TOTP'
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	
+	private static final byte FREE = 0;
+	private static final byte LIVE = 1;
+	private static final byte TOMBSTONE = 2;
+	
+	// Slot layout: state (1 byte), generation (1 byte, then 2 unused), payload length (int), expires (long), CRC (int), payload.
+	private static final int OFFSET_STATE = 0;
+	private static final int OFFSET_GENERATION = 1;
+	private static final int OFFSET_LENGTH = 4;
+	private static final int OFFSET_EXPIRES = 8;
+	private static final int OFFSET_CRC = 16;
+	private static final int OFFSET_PAYLOAD = 20;
+	
+	// A session is never further away than this from the slot its key hashes to; this bounds the cost of every lookup, even when the file is nearly full.
+	private static final int MAX_PROBE = 64;
+	
+	private final Crypto crypto;
+	private final int slotSize;
+	private final int slotCount;
+	private final MappedByteBuffer map;
+	// Both only used while holding this store's lock.
+	private final ByteBuffer view;
+	private final byte[] scratch;
+	
+	public MappedFileSessionStore(Crypto crypto) {
+		this(crypto, new File("./db/sessions.slots"), 512, 16384);
+	}
+	
+	/**
+	 * @param file The file to store sessions in; created if it doesn't exist yet.
+	 * @param slotSize The size of a single session in bytes; all keys and values of a session must fit.
+	 * @param slotCount The maximum number of live sessions.
+	 * @throws SessionStoreException If the file exists but was created with a different {@code slotSize} or {@code slotCount}, or can't be opened.
+	 */
+	public MappedFileSessionStore(Crypto crypto, File file, int slotSize, int slotCount) {
+		if (crypto == null) throw new NullPointerException("crypto");
+		if (slotSize <= OFFSET_PAYLOAD) throw new IllegalArgumentException("slotSize too small");
+		this.crypto = crypto;
+		this.slotSize = slotSize;
+		this.slotCount = slotCount;
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) dir.mkdirs();
+		
+		long size = HEADER_SIZE + (long) slotSize * slotCount;
+		if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("slotSize * slotCount too large; at most 2GB is supported");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			boolean fresh = raf.length() == 0;
+			if (fresh) raf.setLength(size);
+			else if (raf.length() != size) throw new SessionStoreException("Session file " + file + " was created with different settings");
+			this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			this.view = map.duplicate();
+			this.scratch = new byte[slotSize];
+		} catch (IOException e) {
+			throw new SessionStoreException(e);
+		}
+		
+		if (map.getInt(0) == 0) {
+			map.putInt(0, MAGIC);
+			map.putInt(4, VERSION);
+			map.putInt(8, slotSize);
+			map.putInt(12, slotCount);
+		} else if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(8) != slotSize || map.getInt(12) != slotCount) {
+			throw new SessionStoreException("Session file " + file + " is not a session file, or was created with different settings");
+		}
+		
+		recover();
+	}
+	
+	/**
+	 * Discards slots that fail their CRC check, which can only happen if the server died halfway through writing one, and the old version of any session
+	 * that was being updated when the server died.
+	 */
+	private synchronized void recover() {
+		Map<String, Integer> sessions = new HashMap<>();
+		for (int slot = 0; slot < slotCount; slot++) {
+			if (state(slot) != LIVE) continue;
+			if (!crcMatches(slot)) {
+				setState(slot, TOMBSTONE);
+				continue;
+			}
+			
+			String sessionKey = readPayload(slot)[0];
+			Integer other = sessions.put(sessionKey, slot);
+			if (other == null) continue;
+			// Versions are written one generation apart, and only two can ever exist at once; this comparison survives the generation wrapping around.
+			boolean newer = map.get(slotOffset(slot) + OFFSET_GENERATION) == (byte) (map.get(slotOffset(other) + OFFSET_GENERATION) + 1);
+			setState(newer ? other : slot, TOMBSTONE);
+			if (!newer) sessions.put(sessionKey, other);
+		}
+	}
+	
+	@Override public Session create(long ttl) {
+		long expiresAt = System.currentTimeMillis() + ttl;
+		while (true) {
+			String sessionKey = crypto.generateRandomKey(12);
+			synchronized (this) {
+				if (find(sessionKey) != -1) continue;
+				int slot = findReusable(sessionKey);
+				if (slot == -1) throw new SessionStoreException("Session store is full");
+				write(slot, expiresAt, (byte) 0, new String[] {sessionKey});
+			}
+			return new MappedSession(this, sessionKey);
+		}
+	}
+	
+	@Override public Session get(String sessionKey) {
+		if (sessionKey == null) throw new SessionNotFoundException(sessionKey);
+		synchronized (this) {
+			if (find(sessionKey) == -1) throw new SessionNotFoundException(sessionKey);
+		}
+		return new MappedSession(this, sessionKey);
+	}
+	
+	@Override public synchronized Map<String, String> getAndInvalidate(String sessionKey) {
+		if (sessionKey == null) throw new SessionNotFoundException(sessionKey);
+		Map<String, String> values = snapshot(sessionKey);
+		setState(find(sessionKey), TOMBSTONE);
+		return values;
+	}
+	
+	@Override public synchronized void invalidate(String sessionKey) {
+		if (sessionKey == null) return;
+		int slot = find(sessionKey);
+		// A tombstone (not FREE), so that lookups for sessions further along the same probe sequence keep looking past this slot.
+		if (slot != -1) setState(slot, TOMBSTONE);
+	}
+	
+	synchronized void put(String sessionKey, String key, String value) {
+		putAll(sessionKey, Collections.singletonMap(key, value));
+	}
+	
+	synchronized void putAll(String sessionKey, Map<String, String> values) {
+		int slot = find(sessionKey);
+		if (slot == -1) throw new SessionNotFoundException(sessionKey);
+		String[] entries = readPayload(slot);
+		for (Map.Entry<String, String> e : values.entrySet()) entries = SessionPayloads.with(entries, 1, e.getKey(), e.getValue());
+		int offset = slotOffset(slot);
+		long expiresAt = map.getLong(offset + OFFSET_EXPIRES);
+		byte generation = (byte) (map.get(offset + OFFSET_GENERATION) + 1);
+		
+		// Write the new version elsewhere first, so that if we die halfway, the old version is still there; see the class javadoc.
+		int copy = findReusable(sessionKey);
+		if (copy == -1) {
+			write(slot, expiresAt, generation, entries);
+			return;
+		}
+		write(copy, expiresAt, generation, entries);
+		setState(slot, TOMBSTONE);
+	}
+	
+	synchronized Map<String, String> snapshot(String sessionKey) {
+		int slot = find(sessionKey);
+		if (slot == -1) throw new SessionNotFoundException(sessionKey);
+		String[] entries = readPayload(slot);
+		Map<String, String> out = new HashMap<>();
+		for (int i = 1; i < entries.length - 1; i += 2) out.put(entries[i], entries[i + 1]);
+		return Collections.unmodifiableMap(out);
+	}
+	
+	synchronized String get(String sessionKey, String key) {
+		int slot = find(sessionKey);
+		if (slot == -1) throw new SessionNotFoundException(sessionKey);
+		return SessionPayloads.get(readPayload(slot), 1, key);
+	}
+	
+	/**
+	 * Returns the slot holding the live session with this key, or -1.
+	 */
+	private int find(String sessionKey) {
+		long now = System.currentTimeMillis();
+		byte[] key = sessionKey.getBytes(StandardCharsets.UTF_8);
+		int home = home(sessionKey);
+		for (int i = 0; i < MAX_PROBE; i++) {
+			int slot = (home + i) % slotCount;
+			byte state = state(slot);
+			if (state == FREE) return -1;
+			if (state != LIVE) continue;
+			int offset = slotOffset(slot);
+			if (map.getLong(offset + OFFSET_EXPIRES) < now) continue;
+			if (keyMatches(offset, key)) return slot;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Checks whether the first string in the slot's payload (see {@link SessionPayloads}) is {@code key}, without decoding it.
+	 */
+	private boolean keyMatches(int offset, byte[] key) {
+		int length = map.getInt(offset + OFFSET_LENGTH);
+		if (length < 4 + key.length || (map.getShort(offset + OFFSET_PAYLOAD + 2) & 0xFFFF) != key.length) return false;
+		view.position(offset + OFFSET_PAYLOAD + 4);
+		view.get(scratch, 0, key.length);
+		for (int i = 0; i < key.length; i++) {
+			if (scratch[i] != key[i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the first slot along this key's probe sequence that can hold a new session (never used, discarded, or expired), or -1.
+	 */
+	private int findReusable(String sessionKey) {
+		long now = System.currentTimeMillis();
+		int home = home(sessionKey);
+		for (int i = 0; i < MAX_PROBE; i++) {
+			int slot = (home + i) % slotCount;
+			byte state = state(slot);
+			if (state != LIVE || map.getLong(slotOffset(slot) + OFFSET_EXPIRES) < now) return slot;
+		}
+		return -1;
+	}
+	
+	private int home(String sessionKey) {
+		int h = sessionKey.hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7FFFFFFF) % slotCount;
+	}
+	
+	private int slotOffset(int slot) {
+		// The constructor guarantees the whole file fits in an int.
+		return HEADER_SIZE + slot * slotSize;
+	}
+	
+	private byte state(int slot) {
+		return map.get(slotOffset(slot) + OFFSET_STATE);
+	}
+	
+	private void setState(int slot, byte state) {
+		map.put(slotOffset(slot) + OFFSET_STATE, state);
+	}
+	
+	private String[] readPayload(int slot) {
+		int offset = slotOffset(slot);
+		int length = map.getInt(offset + OFFSET_LENGTH);
+		view.position(offset + OFFSET_PAYLOAD);
+		view.get(scratch, 0, length);
+		return SessionPayloads.decode(scratch, length);
+	}
+	
+	/**
+	 * The CRC is written last, so a slot that was only partially written fails its CRC check on recovery.
+	 */
+	private void write(int slot, long expiresAt, byte generation, String[] entries) {
+		byte[] payload = SessionPayloads.encode(entries);
+		if (payload.length > slotSize - OFFSET_PAYLOAD) throw new SessionStoreException("Session too large; at most " + (slotSize - OFFSET_PAYLOAD) + " bytes allowed");
+		int offset = slotOffset(slot);
+		view.position(offset + OFFSET_PAYLOAD);
+		view.put(payload);
+		map.putInt(offset + OFFSET_LENGTH, payload.length);
+		map.putLong(offset + OFFSET_EXPIRES, expiresAt);
+		map.put(offset + OFFSET_GENERATION, generation);
+		map.put(offset + OFFSET_STATE, LIVE);
+		map.putInt(offset + OFFSET_CRC, crc(slot));
+	}
+	
+	private boolean crcMatches(int slot) {
+		int offset = slotOffset(slot);
+		int length = map.getInt(offset + OFFSET_LENGTH);
+		if (length < 0 || length > slotSize - OFFSET_PAYLOAD) return false;
+		return map.getInt(offset + OFFSET_CRC) == crc(slot);
+	}
+	
+	private int crc(int slot) {
+		int offset = slotOffset(slot);
+		int length = map.getInt(offset + OFFSET_LENGTH);
+		CRC32 crc = new CRC32();
+		view.position(offset);
+		view.get(scratch, 0, OFFSET_CRC);
+		crc.update(scratch, 0, OFFSET_CRC);
+		view.position(offset + OFFSET_PAYLOAD);
+		view.get(scratch, 0, length);
+		crc.update(scratch, 0, length);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,54 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.util.Map;
+
+import org.projectlombok.security.totpexample.Session;
+
+/**
+ * This is the implementation of the {@code Session} interface that goes with {@link MappedFileSessionStore}.
+ */
+class MappedSession implements Session {
+	private final MappedFileSessionStore store;
+	private final String sessionKey;
+	
+	MappedSession(MappedFileSessionStore store, String sessionKey) {
+		this.store = store;
+		this.sessionKey = sessionKey;
+	}
+	
+	@Override public String getSessionKey() {
+		return sessionKey;
+	}
+	
+	@Override public Session put(String key, String value) {
+		if (key == null) throw new NullPointerException("key");
+		if (value == null) throw new NullPointerException("value");
+		if (key.isEmpty()) throw new IllegalArgumentException("key is empty");
+		
+		store.put(sessionKey, key, value);
+		return this;
+	}
+	
+	@Override public Session putAll(Map<String, String> values) {
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			if (e.getKey() == null) throw new NullPointerException("key");
+			if (e.getValue() == null) throw new NullPointerException("value");
+			if (e.getKey().isEmpty()) throw new IllegalArgumentException("key is empty");
+		}
+		
+		store.putAll(sessionKey, values);
+		return this;
+	}
+	
+	@Override public String getOrDefault(String key, String defaultValue) {
+		if (key == null) throw new NullPointerException("key");
+		if (key.isEmpty()) throw new IllegalArgumentException("key is empty");
+		
+		String value = store.get(sessionKey, key);
+		return value != null ? value : defaultValue;
+	}
+	
+	@Override public Map<String, String> snapshot() {
+		return store.snapshot(sessionKey);
+	}
+}
@@ -0,0 +1,79 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brings a database schema up to date by running, in order, every migration that hasn't run on it yet. Each migration that ran is recorded as a row in the
+ * {@code SCHEMA_VERSION} table; the highest one is the version the database is at.
+ * <p>
+ * A released migration is never edited; any change to the schema is a new migration at the end of the list. Migration 1 creates the original tables, and must leave
+ * databases created before there were migrations (they have those tables, but no {@code SCHEMA_VERSION} yet) as they are.
+ * <p>
+ * <em>NB: </em>H2 commits every {@code create}, {@code alter} and {@code drop} statement implicitly, so a migration is not atomic. If the server dies halfway through one,
+ * it runs again from the start on the next startup; write every migration so that it can pick up where an interrupted run left off.
+ */
+final class SchemaMigrations {
+	interface Migration {
+		void apply(Connection connection) throws SQLException;
+	}
+	
+	private final List<Migration> migrations = new ArrayList<>();
+	
+	/**
+	 * Adds the next migration; the first one added is version 1.
+	 */
+	SchemaMigrations add(Migration migration) {
+		migrations.add(migration);
+		return this;
+	}
+	
+	/**
+	 * Runs every migration newer than the database's version, committing and recording each one before starting the next.
+	 * 
+	 * @return The version the database was at before; 0 if it had never been migrated.
+	 * @throws SQLException If a migration fails (the database stays at the version of the last one that succeeded), or if the database is at a version newer than this code knows about.
+	 */
+	int migrate(Connection connection) throws SQLException {
+		int version;
+		try (Statement s = connection.createStatement()) {
+			s.execute("create table if not exists SCHEMA_VERSION (VERSION int not null primary key, APPLIED timestamp not null);");
+			try (ResultSet result = s.executeQuery("select coalesce(max(VERSION), 0) from SCHEMA_VERSION;")) {
+				result.next();
+				version = result.getInt(1);
+			}
+		}
+		connection.commit();
+		
+		if (version > migrations.size()) {
+			throw new SQLException("The database schema is at version " + version + ", but this code only knows versions up to " + migrations.size() + ". Is an older release running against a newer database?");
+		}
+		
+		for (int next = version + 1; next <= migrations.size(); next++) {
+			migrations.get(next - 1).apply(connection);
+			try (PreparedStatement record = connection.prepareStatement("insert into SCHEMA_VERSION (VERSION, APPLIED) values (?, now());")) {
+				record.setInt(1, next);
+				record.executeUpdate();
+			}
+			connection.commit();
+		}
+		return version;
+	}
+	
+	static boolean tableExists(Connection connection, String table) throws SQLException {
+		try (ResultSet tables = connection.getMetaData().getTables(null, null, table, null)) {
+			return tables.next();
+		}
+	}
+	
+	static boolean columnExists(Connection connection, String table, String column) throws SQLException {
+		try (ResultSet columns = connection.getMetaData().getColumns(null, null, table, column)) {
+			return columns.next();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.projectlombok.security.totpexample.Session;
+import org.projectlombok.security.totpexample.SessionNotFoundException;
+
+/**
+ * The {@code Session} implementation of {@link SealedSessionStore}; all values are held right here, and the session key is re-sealed whenever they change.
+ */
+class SealedSession implements Session {
+	private final SealedSessionStore store;
+	final String id;
+	final long expiresAt;
+	private String[] entries;
+	private String sessionKey;
+	
+	SealedSession(SealedSessionStore store, String id, long expiresAt, String[] entries) {
+		this(store, id, expiresAt, entries, store.seal(id, expiresAt, entries));
+	}
+	
+	SealedSession(SealedSessionStore store, String id, long expiresAt, String[] entries, String sessionKey) {
+		this.store = store;
+		this.id = id;
+		this.expiresAt = expiresAt;
+		this.entries = entries;
+		this.sessionKey = sessionKey;
+	}
+	
+	@Override public synchronized String getSessionKey() {
+		return sessionKey;
+	}
+	
+	@Override public Session put(String key, String value) {
+		return putAll(Collections.singletonMap(key, value));
+	}
+	
+	@Override public synchronized Session putAll(Map<String, String> values) {
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			if (e.getKey() == null) throw new NullPointerException("key");
+			if (e.getValue() == null) throw new NullPointerException("value");
+			if (e.getKey().isEmpty()) throw new IllegalArgumentException("key is empty");
+		}
+		if (values.isEmpty()) return this;
+		
+		checkLive();
+		String[] updated = entries;
+		for (Map.Entry<String, String> e : values.entrySet()) updated = SessionPayloads.with(updated, 0, e.getKey(), e.getValue());
+		sessionKey = store.seal(id, expiresAt, updated);
+		entries = updated;
+		return this;
+	}
+	
+	@Override public synchronized String getOrDefault(String key, String defaultValue) {
+		if (key == null) throw new NullPointerException("key");
+		if (key.isEmpty()) throw new IllegalArgumentException("key is empty");
+		
+		checkLive();
+		String value = SessionPayloads.get(entries, 0, key);
+		return value != null ? value : defaultValue;
+	}
+	
+	@Override public synchronized Map<String, String> snapshot() {
+		checkLive();
+		Map<String, String> out = new HashMap<>();
+		for (int i = 0; i < entries.length - 1; i += 2) out.put(entries[i], entries[i + 1]);
+		return Collections.unmodifiableMap(out);
+	}
+	
+	private void checkLive() {
+		if (!store.isLive(id, expiresAt)) throw new SessionNotFoundException(sessionKey);
+	}
+}
@@ -0,0 +1,168 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.projectlombok.security.totpexample.Crypto;
+import org.projectlombok.security.totpexample.Session;
+import org.projectlombok.security.totpexample.SessionNotFoundException;
+import org.projectlombok.security.totpexample.SessionStore;
+import org.projectlombok.security.totpexample.SessionStoreException;
+
+/**
+ * This is an implementation of the {@code SessionStore} interface that stores nothing at all: the session key <em>is</em> the session.
+ * 
+ * A session key is the session's id, its expiry time and all its keys and values (see {@link SessionPayloads}), encrypted and authenticated with AES-GCM under a key only the server knows.
+ * The user can't read what's in it (the TOTP secret or the password for example), and can't change anything in it or make up their own. Every {@code put} re-seals the session,
+ * so the session key changes: always call {@link Session#getSessionKey()} after the last {@code put}. All the keys of one session carry the same id.
+ * <p>
+ * Since there's no storage, there is nothing to share between servers except the key, and no database to bottleneck on; the cost is a bit of CPU per request, and longer URLs.
+ * <p>
+ * The one thing that is stored is the ids of sessions that were ended with {@link #getAndInvalidate(String)} or {@link #invalidate(String)}, each only until the session would have expired anyway.
+ * Every key of such a session is refused from then on, so a login or signup can't be completed twice by replaying its session key (from a double submit, or from an access log
+ * or browser history, which is where keys passed in the URL end up).
+ * <p>
+ * SECURITY NOTE: That list only lives in this server's memory. With multiple servers sharing the key, or after a restart with the {@link #SealedSessionStore(Crypto, byte[])} constructor,
+ * a session that was ended elsewhere (or before the restart) can be used again until it expires; one-shot flows are <em>not</em> protected in that setup.
+ * Use a store that keeps its sessions in a shared database there instead.
+ * <p>
+ * <em>NB: </em>With the {@link #SealedSessionStore(Crypto)} constructor, the key is generated at startup, so all sessions become invalid when the server restarts.
+ * When running multiple servers, give them all the same key.
+ */
+public class SealedSessionStore implements SessionStore {
+	private static final byte VERSION = 2;
+	private static final int ID_LENGTH = 16;
+	private static final int IV_LENGTH = 12;
+	private static final int TAG_BITS = 128;
+	
+	private final Crypto crypto;
+	private final SecretKey key;
+	private final Set<String> ended = ConcurrentHashMap.newKeySet();
+	private final HashedTimingWheel<String> endedExpiry;
+	
+	public SealedSessionStore(Crypto crypto) {
+		this(crypto, crypto.generateBytes(32));
+	}
+	
+	/**
+	 * @param key A 16 or 32 byte AES key; anybody who knows it can read and forge sessions.
+	 */
+	public SealedSessionStore(Crypto crypto, byte[] key) {
+		if (crypto == null) throw new NullPointerException("crypto");
+		if (key.length != 16 && key.length != 32) throw new IllegalArgumentException("key must be 16 or 32 bytes");
+		this.crypto = crypto;
+		this.key = new SecretKeySpec(key.clone(), "AES");
+		// An ended session's id only needs to be remembered until the session expires; after that its keys are refused anyway.
+		this.endedExpiry = new HashedTimingWheel<>("sealed-session-expiry", TimeUnit.SECONDS.toMillis(1), 1024, ended::remove);
+	}
+	
+	@Override public Session create(long ttl) {
+		String id = Base64.getUrlEncoder().withoutPadding().encodeToString(crypto.generateBytes(ID_LENGTH));
+		return new SealedSession(this, id, System.currentTimeMillis() + ttl, new String[0]);
+	}
+	
+	@Override public Session get(String sessionKey) {
+		return open(sessionKey);
+	}
+	
+	@Override public Map<String, String> getAndInvalidate(String sessionKey) {
+		SealedSession session = open(sessionKey);
+		Map<String, String> values = session.snapshot();
+		// Of any number of concurrent calls with keys of the same session, only the first one adds its id.
+		if (!end(session)) throw new SessionNotFoundException(sessionKey);
+		return values;
+	}
+	
+	@Override public void invalidate(String sessionKey) {
+		try {
+			end(open(sessionKey));
+		} catch (SessionNotFoundException e) {
+			// Already expired, ended, or never valid; nothing to do.
+		}
+	}
+	
+	boolean isLive(String id, long expiresAt) {
+		return expiresAt >= System.currentTimeMillis() && !ended.contains(id);
+	}
+	
+	private boolean end(SealedSession session) {
+		if (!ended.add(session.id)) return false;
+		endedExpiry.schedule(session.id, session.expiresAt);
+		return true;
+	}
+	
+	/**
+	 * Returns the number of ended sessions whose ids are held in memory, so that their keys are refused until they expire.
+	 */
+	public int getEndedCount() {
+		return ended.size();
+	}
+	
+	private SealedSession open(String sessionKey) {
+		if (sessionKey == null) throw new SessionNotFoundException(sessionKey);
+		byte[] token;
+		try {
+			token = Base64.getUrlDecoder().decode(sessionKey);
+		} catch (IllegalArgumentException e) {
+			throw new SessionNotFoundException(sessionKey);
+		}
+		if (token.length < 1 + IV_LENGTH + TAG_BITS / 8 || token[0] != VERSION) throw new SessionNotFoundException(sessionKey);
+		
+		byte[] plain;
+		try {
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, token, 1, IV_LENGTH));
+			cipher.updateAAD(token, 0, 1);
+			plain = cipher.doFinal(token, 1 + IV_LENGTH, token.length - 1 - IV_LENGTH);
+		} catch (AEADBadTagException e) {
+			// Tampered with, or sealed with another key.
+			throw new SessionNotFoundException(sessionKey);
+		} catch (GeneralSecurityException e) {
+			throw new SessionStoreException(e);
+		}
+		
+		ByteBuffer in = ByteBuffer.wrap(plain);
+		byte[] rawId = new byte[ID_LENGTH];
+		in.get(rawId);
+		String id = Base64.getUrlEncoder().withoutPadding().encodeToString(rawId);
+		long expiresAt = in.getLong();
+		if (!isLive(id, expiresAt)) throw new SessionNotFoundException(sessionKey);
+		byte[] payload = new byte[in.remaining()];
+		in.get(payload);
+		return new SealedSession(this, id, expiresAt, SessionPayloads.decode(payload), sessionKey);
+	}
+	
+	String seal(String id, long expiresAt, String[] entries) {
+		byte[] payload = SessionPayloads.encode(entries);
+		ByteBuffer plain = ByteBuffer.allocate(ID_LENGTH + 8 + payload.length);
+		plain.put(Base64.getUrlDecoder().decode(id));
+		plain.putLong(expiresAt);
+		plain.put(payload);
+		
+		byte[] iv = crypto.generateBytes(IV_LENGTH);
+		try {
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+			cipher.updateAAD(new byte[] {VERSION});
+			byte[] sealed = cipher.doFinal(plain.array());
+			byte[] token = new byte[1 + IV_LENGTH + sealed.length];
+			token[0] = VERSION;
+			System.arraycopy(iv, 0, token, 1, IV_LENGTH);
+			System.arraycopy(sealed, 0, token, 1 + IV_LENGTH, sealed.length);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+		} catch (GeneralSecurityException e) {
+			throw new SessionStoreException(e);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes back the expiry of long lived sessions that are in use. Lookups only ever record the new expiry in memory; a background thread writes them all to the
+ * {@code USERSESSIONSTORE} table every so often, in one transaction, so that checking a session stays a read.
+ * 
+ * Until it's written, the in-memory expiry is the authoritative one.
+ * <p>
+ * <em>NB: </em>Extensions that haven't been written yet are lost if the server stops. That's harmless: those sessions just keep their old expiry, which was still
+ * some time away, and the next use extends them again.
+ */
+final class SessionExtender {
+	private final ExpiryReaper.ConnectionSource connections;
+	private final ConcurrentMap<Integer, Long> pending = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService flusher;
+	private final AtomicLong extensions = new AtomicLong();
+	
+	SessionExtender(ExpiryReaper.ConnectionSource connections, long flushIntervalMillis) {
+		this.connections = connections;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "session-extender");
+			t.setDaemon(true);
+			return t;
+		});
+		flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Moves the session's expiry to {@code expiresAt}, unless it's already later than that.
+	 */
+	void extend(int sessionId, long expiresAt) {
+		pending.merge(sessionId, expiresAt, Math::max);
+	}
+	
+	/**
+	 * Returns the expiry that hasn't been written yet for this session, or {@code null} if the database is up to date.
+	 */
+	Long getPending(int sessionId) {
+		return pending.get(sessionId);
+	}
+	
+	/**
+	 * Writes all pending expiries in one transaction.
+	 */
+	void flush() throws SQLException {
+		if (pending.isEmpty()) return;
+		List<Map.Entry<Integer, Long>> batch = new ArrayList<>();
+		for (Map.Entry<Integer, Long> e : pending.entrySet()) batch.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue()));
+		
+		try (Connection connection = connections.get()) {
+			// 'EXPIRES < ?' keeps an expiry from ever moving backwards.
+			try (PreparedStatement s = connection.prepareStatement("update USERSESSIONSTORE set EXPIRES = ? where ID = ? and EXPIRES < ?;")) {
+				for (Map.Entry<Integer, Long> e : batch) {
+					Timestamp expires = new Timestamp(e.getValue());
+					s.setTimestamp(1, expires);
+					s.setInt(2, e.getKey());
+					s.setTimestamp(3, expires);
+					s.addBatch();
+				}
+				s.executeBatch();
+			}
+			connection.commit();
+		}
+		
+		// Only forget expiries that weren't extended again while we were writing; those go out with the next flush.
+		for (Map.Entry<Integer, Long> e : batch) pending.remove(e.getKey(), e.getValue());
+		extensions.addAndGet(batch.size());
+	}
+	
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (SQLException | RuntimeException e) {
+			// The expiries stay pending; try again next time. An exception escaping here would silently cancel all future runs.
+			e.printStackTrace();
+		}
+	}
+	
+	/** The number of session expiries written. */
+	long getExtensionCount() {
+		return extensions.get();
+	}
+}
@@ -0,0 +1,94 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.projectlombok.security.totpexample.SessionStoreException;
+
+/**
+ * A compact binary form for the contents of a session: a list of strings (generally alternating keys and values), each stored as a 2-byte length followed by its UTF-8 bytes,
+ * preceded by a 2-byte count.
+ */
+final class SessionPayloads {
+	private static final int MAX_STRINGS = 0xFFFF;
+	private static final int MAX_STRING_BYTES = 0xFFFF;
+	
+	private SessionPayloads() {}
+	
+	static byte[] encode(String[] strings) {
+		if (strings.length > MAX_STRINGS) throw new SessionStoreException("Too many session values");
+		byte[][] encoded = new byte[strings.length][];
+		int size = 2;
+		for (int i = 0; i < strings.length; i++) {
+			encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+			if (encoded[i].length > MAX_STRING_BYTES) throw new SessionStoreException("Session value too large");
+			size += 2 + encoded[i].length;
+		}
+		
+		ByteBuffer out = ByteBuffer.allocate(size);
+		out.putShort((short) strings.length);
+		for (byte[] e : encoded) {
+			out.putShort((short) e.length);
+			out.put(e);
+		}
+		return out.array();
+	}
+	
+	/**
+	 * @throws SessionStoreException If the data is not a valid payload.
+	 */
+	static String[] decode(byte[] data) {
+		return decode(data, data.length);
+	}
+	
+	/**
+	 * Like {@link #decode(byte[])}, but only looks at the first {@code length} bytes of {@code data}, so a reused buffer can be passed in.
+	 * 
+	 * @throws SessionStoreException If the data is not a valid payload.
+	 */
+	static String[] decode(byte[] data, int length) {
+		ByteBuffer in = ByteBuffer.wrap(data, 0, length);
+		try {
+			int count = in.getShort() & 0xFFFF;
+			String[] out = new String[count];
+			for (int i = 0; i < count; i++) {
+				int len = in.getShort() & 0xFFFF;
+				if (len > in.remaining()) throw new SessionStoreException("Corrupt session payload");
+				out[i] = new String(data, in.position(), len, StandardCharsets.UTF_8);
+				in.position(in.position() + len);
+			}
+			return out;
+		} catch (BufferUnderflowException e) {
+			throw new SessionStoreException("Corrupt session payload", e);
+		}
+	}
+	
+	/**
+	 * Returns a copy of {@code entries} (alternating keys and values, starting at {@code offset}) with {@code key} set to {@code value}.
+	 */
+	static String[] with(String[] entries, int offset, String key, String value) {
+		for (int i = offset; i < entries.length - 1; i += 2) {
+			if (entries[i].equals(key)) {
+				String[] updated = entries.clone();
+				updated[i + 1] = value;
+				return updated;
+			}
+		}
+		String[] updated = new String[entries.length + 2];
+		System.arraycopy(entries, 0, updated, 0, entries.length);
+		updated[entries.length] = key;
+		updated[entries.length + 1] = value;
+		return updated;
+	}
+	
+	/**
+	 * Looks up {@code key} in {@code entries} (alternating keys and values), starting at {@code offset}.
+	 */
+	static String get(String[] entries, int offset, String key) {
+		for (int i = offset; i < entries.length - 1; i += 2) {
+			if (entries[i].equals(key)) return entries[i + 1];
+		}
+		return null;
+	}
+}
@@ -0,0 +1,143 @@
+package org.projectlombok.security.totpexample.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.projectlombok.security.totpexample.UserStoreException;
+
+/**
+ * Applies advances of a user's last successful TOTP tick in memory right away, and writes them to the {@code TOTPSTORE} table a few milliseconds later,
+ * many logins at a time in one transaction (a 'group commit'), instead of one transaction per login.
+ * 
+ * Until it's written, the in-memory tick is the authoritative one: replay checks and reads of a user's TOTP data see it immediately.
+ * Only the write is deferred; every advance still reads the user's row, so a lockout, or a tick written directly (by {@code updateLastSuccessfulTick}), is always taken into account.
+ * <p>
+ * <em>NB: </em>Durability: a login is acknowledged before its tick is on disk. If the server process is killed (or the machine loses power) within the flush interval,
+ * those ticks are lost, and each affected user's last code could be accepted once more after the restart, for as long as that code is still valid (a minute or two at most).
+ * A normal shutdown flushes everything first (via a shutdown hook). Nothing else is at risk: lockouts, signups, and sessions are still written synchronously.
+ * <p>
+ * <em>NB: </em>The in-memory ticks are only known to this server. If multiple servers share the user database, another server could accept a code that was just used here; don't use this mode there.
+ */
+final class TickWriteBehind {
+	private static final int LOCK_STRIPES = 64;
+	
+	private final ExpiryReaper.ConnectionSource connections;
+	private final ConcurrentMap<String, Long> pending = new ConcurrentHashMap<>();
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	private final ScheduledExecutorService flusher;
+	private final Thread shutdownHook;
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushedTicks = new AtomicLong();
+	
+	TickWriteBehind(ExpiryReaper.ConnectionSource connections, long flushIntervalMillis) {
+		this.connections = connections;
+		for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new Object();
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "tick-write-behind");
+			t.setDaemon(true);
+			return t;
+		});
+		flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+		this.shutdownHook = new Thread(this::flushQuietly, "tick-write-behind-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+	
+	/**
+	 * Advances the user's last tick to {@code tick} if that's higher than the current one and the user isn't locked out; see {@code UserStore.advanceLastSuccessfulTick}.
+	 */
+	boolean advance(String username, long tick) {
+		synchronized (locks[(username.hashCode() & 0x7FFFFFFF) % LOCK_STRIPES]) {
+			long current = 0L;
+			// An unknown user can't log in either; treat them like a locked out one.
+			boolean lockedOut = true;
+			try (Connection connection = connections.get()) {
+				try (PreparedStatement s = connection.prepareStatement("select T.LASTTICK, T.LOCKEDOUT from TOTPSTORE T inner join USERSTORE U on U.ID = T.USERID where U.USERNAME = ?;")) {
+					s.setString(1, username);
+					try (ResultSet result = s.executeQuery()) {
+						if (result.next()) {
+							current = result.getLong(1);
+							lockedOut = result.getBoolean(2);
+						}
+					}
+				}
+				connection.commit();
+			} catch (SQLException e) {
+				throw new UserStoreException(e);
+			}
+			if (lockedOut) return false;
+			
+			// The database has the latest tick unless one is still waiting to be written.
+			Long waiting = pending.get(username);
+			if (waiting != null && waiting > current) current = waiting;
+			if (tick <= current) return false;
+			pending.put(username, tick);
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns the tick that hasn't been written yet for this user, or {@code null} if the database is up to date.
+	 */
+	Long getPending(String username) {
+		return pending.get(username);
+	}
+	
+	/**
+	 * Writes all pending ticks in one transaction.
+	 */
+	void flush() throws SQLException {
+		if (pending.isEmpty()) return;
+		List<Map.Entry<String, Long>> batch = new ArrayList<>();
+		for (Map.Entry<String, Long> e : pending.entrySet()) batch.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue()));
+		
+		try (Connection connection = connections.get()) {
+			// 'LASTTICK < ?' keeps the column from ever going backwards, whatever else wrote to it in the meantime.
+			try (PreparedStatement s = connection.prepareStatement("update TOTPSTORE set LASTTICK = ? where USERID = (select ID from USERSTORE where USERNAME = ?) and LASTTICK < ?;")) {
+				for (Map.Entry<String, Long> e : batch) {
+					s.setLong(1, e.getValue());
+					s.setString(2, e.getKey());
+					s.setLong(3, e.getValue());
+					s.addBatch();
+				}
+				s.executeBatch();
+			}
+			connection.commit();
+		}
+		
+		// Only forget ticks that weren't advanced again while we were writing; those go out with the next flush.
+		for (Map.Entry<String, Long> e : batch) pending.remove(e.getKey(), e.getValue());
+		flushes.incrementAndGet();
+		flushedTicks.addAndGet(batch.size());
+	}
+	
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (SQLException | RuntimeException e) {
+			// The ticks stay pending; try again next time. An exception escaping here would silently cancel all future runs.
+			e.printStackTrace();
+		}
+	}
+	
+	/** The number of transactions used to write ticks. */
+	long getFlushCount() {
+		return flushes.get();
+	}
+	
+	/** The number of ticks written. */
+	long getFlushedTickCount() {
+		return flushedTicks.get();
+	}
+}
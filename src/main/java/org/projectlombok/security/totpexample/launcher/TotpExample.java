@@ -1,15 +1,27 @@
 package org.projectlombok.security.totpexample.launcher;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.projectlombok.security.totpexample.CredentialStuffingDetector;
 import org.projectlombok.security.totpexample.Crypto;
+import org.projectlombok.security.totpexample.FlashMessages;
 import org.projectlombok.security.totpexample.SessionStore;
 import org.projectlombok.security.totpexample.ResourcesHome;
 import org.projectlombok.security.totpexample.Totp;
 import org.projectlombok.security.totpexample.UserStore;
+import org.projectlombok.security.totpexample.impl.BoundedSessionStore;
+import org.projectlombok.security.totpexample.impl.CachingUserStore;
+import org.projectlombok.security.totpexample.impl.ConnectionPool;
 import org.projectlombok.security.totpexample.impl.DbBasedSessionStore;
 import org.projectlombok.security.totpexample.impl.DbBasedUserStore;
+import org.projectlombok.security.totpexample.impl.InMemorySessionStore;
+import org.projectlombok.security.totpexample.impl.MappedFileSessionStore;
+import org.projectlombok.security.totpexample.impl.SealedSessionStore;
 import org.projectlombok.security.totpexample.servlets.ConfirmTotpLoginServlet;
 import org.projectlombok.security.totpexample.servlets.ConfirmTotpSetupServlet;
 import org.projectlombok.security.totpexample.servlets.HomepageServlet;
@@ -58,24 +70,27 @@ public class TotpExample {
 		ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
 		context.setContextPath("/");
 		
-		Crypto crypto = new Crypto();
+		// Seed the random generators from /dev/urandom, so that startup never stalls waiting for entropy; -Dtotp.nonBlockingSeed=false leaves seeding to the JVM.
+		Crypto crypto = new Crypto(Boolean.parseBoolean(System.getProperty("totp.nonBlockingSeed", "true")));
 		Configuration templates = createTemplateConfiguration();
 		SessionStore sessions = createSessionStore(crypto);
 		UserStore users = createUserStore(crypto);
 		Totp totp = new Totp(users, sessions, crypto);
+		CredentialStuffingDetector stuffingDetector = new CredentialStuffingDetector(crypto);
+		FlashMessages flash = new FlashMessages(crypto);
 		
-		context.addServlet(new ServletHolder(new HomepageServlet(templates, sessions)), ""); // The empty string is jetty code for '/'.
-		context.addServlet(new ServletHolder(new LogoutServlet(users, sessions)), "/logout");
-		context.addServlet(new ServletHolder(new LoggedInUsersServlet(templates, users, sessions)), "/main");
+		context.addServlet(new ServletHolder(new HomepageServlet(templates, flash)), ""); // The empty string is jetty code for '/'.
+		context.addServlet(new ServletHolder(new LogoutServlet(users, flash)), "/logout");
+		context.addServlet(new ServletHolder(new LoggedInUsersServlet(templates, users, flash)), "/main");
 		
-		context.addServlet(new ServletHolder(new SignupServlet(templates, sessions)), "/signup");
-		context.addServlet(new ServletHolder(new SetupTotpServlet(templates, users, sessions, totp)), "/setup-totp");
-		context.addServlet(new ServletHolder(new ConfirmTotpSetupServlet(users, sessions, totp)), "/confirm-totp-setup");
+		context.addServlet(new ServletHolder(new SignupServlet(templates, sessions, flash)), "/signup");
+		context.addServlet(new ServletHolder(new SetupTotpServlet(templates, users, sessions, totp, flash)), "/setup-totp");
+		context.addServlet(new ServletHolder(new ConfirmTotpSetupServlet(users, sessions, totp, flash)), "/confirm-totp-setup");
 		
-		context.addServlet(new ServletHolder(new LoginServlet(templates, sessions)), "/login");
-		context.addServlet(new ServletHolder(new VerifyTotpServlet(templates, users, sessions, totp)), "/verify-totp");
-		context.addServlet(new ServletHolder(new TroubleshootTotpServlet(templates, sessions, totp)), "/troubleshoot-totp");
-		context.addServlet(new ServletHolder(new ConfirmTotpLoginServlet(users, sessions, totp)), "/confirm-totp-login");
+		context.addServlet(new ServletHolder(new LoginServlet(templates, sessions, flash)), "/login");
+		context.addServlet(new ServletHolder(new VerifyTotpServlet(templates, users, sessions, totp, stuffingDetector, flash)), "/verify-totp");
+		context.addServlet(new ServletHolder(new TroubleshootTotpServlet(templates, sessions, totp, flash)), "/troubleshoot-totp");
+		context.addServlet(new ServletHolder(new ConfirmTotpLoginServlet(users, sessions, totp, flash)), "/confirm-totp-login");
 		
 		context.addServlet(new ServletHolder(new QrServlet(sessions)), "/qrcode");
 		
@@ -88,13 +103,69 @@ public class TotpExample {
 	}
 	
 	private static SessionStore createSessionStore(Crypto crypto) {
-		// This is a demo implementation of a session store, built around an embedded DB engine that works with local files.
-		return new DbBasedSessionStore(crypto);
+		// Pick with -Dtotp.sessionStore=...
+		String type = System.getProperty("totp.sessionStore", "db");
+		switch (type) {
+		case "db":
+			// This is a demo implementation of a session store, built around an embedded DB engine that works with local files.
+			return bounded(new DbBasedSessionStore(crypto, createConnectionPool("sessions")), 50000, SESSION_BYTE_BUDGET);
+		case "db-compact":
+			// Same database, but all values of a session are stored in the session's own row: one row to read per lookup, one row to write per update.
+			return bounded(new DbBasedSessionStore(crypto, createConnectionPool("sessions"), DbBasedSessionStore.Layout.SINGLE_ROW), 50000, SESSION_BYTE_BUDGET);
+		case "memory":
+			// Faster, but sessions are lost on restart and aren't shared between servers.
+			return bounded(new InMemorySessionStore(crypto), 50000, SESSION_BYTE_BUDGET);
+		case "mmap":
+			// Nearly as fast as 'memory', but sessions survive a restart. They still aren't shared between servers.
+			// The file has room for 16384 sessions; stay well below that, so a new session always finds a free slot close by.
+			// Every session has a slot of a fixed size, so the file can't grow; no byte budget needed.
+			return bounded(new MappedFileSessionStore(crypto), 12000, Long.MAX_VALUE);
+		case "sealed":
+			// No storage at all: the session key is the session, encrypted. Sessions can't be revoked, and are lost on restart since the key is generated at startup.
+			return new SealedSessionStore(crypto);
+		default:
+			throw new IllegalArgumentException("Unknown session store type (try 'db', 'db-compact', 'memory', 'mmap', or 'sealed'): " + type);
+		}
+	}
+	
+	// A session normally holds a few hundred bytes; this leaves plenty of room for 50000 of them, but not for 50000 sessions stuffed with huge values.
+	private static final long SESSION_BYTE_BUDGET = 64L * 1024 * 1024;
+	
+	private static SessionStore bounded(SessionStore store, int maxSessions, long maxBytes) {
+		// Anybody can start a signup, so cap the number of sessions: at most 100 per IP address, and 'maxSessions' in total. The oldest sessions make way for new ones.
+		BoundedSessionStore bounded = new BoundedSessionStore(store, maxSessions, 100, maxBytes);
+		
+		// Log how full the store is once a minute. Under abuse, the eviction counts go up while the size stays flat.
+		ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "session-store-stats");
+			t.setDaemon(true);
+			return t;
+		});
+		logger.scheduleWithFixedDelay(() -> System.out.println("Session store: " + bounded.size() + " sessions (" + bounded.getByteCount() + " bytes); evicted " +
+			bounded.getEvictionCount() + " at the total cap and " + bounded.getSourceEvictionCount() + " at the per-source cap."), 1, 1, TimeUnit.MINUTES);
+		return bounded;
 	}
 	
 	private static UserStore createUserStore(Crypto crypto) {
 		// This is a demo implementation of a session store, built around an embedded DB engine that works with local files.
-		return new DbBasedUserStore(crypto);
+		// Wrapped in a cache, as a single login reads the same user's TOTP data several times.
+		// Add -Dtotp.tickWriteBehindMillis=5 to write TOTP ticks of successful logins in batches; see DbBasedUserStore.
+		long tickWriteBehindMillis = Long.getLong("totp.tickWriteBehindMillis", 0L);
+		// A 'stay logged in' session that's used after half its lifetime is extended; -Dtotp.sessionRenewalPoint=1.0 turns that off.
+		double sessionRenewalPoint = Double.parseDouble(System.getProperty("totp.sessionRenewalPoint", "0.5"));
+		// H2 closes databases from its own shutdown hook, which could run before the one that writes the last batch of ticks; so in that mode, keep the database open until the process is gone.
+		ConnectionPool connections = tickWriteBehindMillis > 0 ? createConnectionPool("users", "DB_CLOSE_ON_EXIT=FALSE") : createConnectionPool("users");
+		return new CachingUserStore(new DbBasedUserStore(crypto, connections, tickWriteBehindMillis, sessionRenewalPoint));
+	}
+	
+	private static ConnectionPool createConnectionPool(String dbName, String... options) {
+		// Each embedded database gets its own pool: by default at most 10 connections, and a request waits at most 5 seconds for one before failing.
+		// Change those with -Dtotp.poolSize=... and -Dtotp.poolTimeoutMillis=...
+		int poolSize = Integer.getInteger("totp.poolSize", 10);
+		long poolTimeoutMillis = Long.getLong("totp.poolTimeoutMillis", TimeUnit.SECONDS.toMillis(5));
+		StringBuilder url = new StringBuilder("jdbc:h2:./db/").append(dbName).append(";DB_CLOSE_DELAY=60");
+		for (String option : options) url.append(';').append(option);
+		return new ConnectionPool(url.toString(), poolSize, poolTimeoutMillis);
 	}
 	
 	private static Configuration createTemplateConfiguration() {
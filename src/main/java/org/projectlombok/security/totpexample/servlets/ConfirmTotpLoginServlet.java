@@ -9,6 +9,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.projectlombok.security.totpexample.FlashMessages;
 import org.projectlombok.security.totpexample.Session;
 import org.projectlombok.security.totpexample.SessionNotFoundException;
 import org.projectlombok.security.totpexample.SessionStore;
@@ -31,11 +32,13 @@ public class ConfirmTotpLoginServlet extends HttpServlet {
 	private final UserStore users;
 	private final SessionStore sessions;
 	private final Totp totp;
+	private final FlashMessages flash;
 	
-	public ConfirmTotpLoginServlet(UserStore users, SessionStore sessions, Totp totp) {
+	public ConfirmTotpLoginServlet(UserStore users, SessionStore sessions, Totp totp, FlashMessages flash) {
 		this.users = users;
 		this.sessions = sessions;
 		this.totp = totp;
+		this.flash = flash;
 	}
 	
 	@Override protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -64,7 +67,15 @@ public class ConfirmTotpLoginServlet extends HttpServlet {
 		boolean toTroubleshooting = false;
 		switch (result.getResult()) {
 		case SUCCESS:
-			String username = session.getOrDefault("username", null);
+			// The login process is done; consuming the session also makes sure that a double submit can't log in twice.
+			String username;
+			try {
+				username = sessions.getAndInvalidate(session.getSessionKey()).get("username");
+			} catch (SessionNotFoundException e) {
+				// The session is gone (it expired, or a double submit consumed it), so the error can't be stored in it.
+				response.sendRedirect(flash.redirectUrl("/login", "The session has expired; log in again."));
+				return;
+			}
 			finishLogin(response, username);
 			return;
 		case NOW_LOCKED_OUT:
@@ -85,6 +96,10 @@ public class ConfirmTotpLoginServlet extends HttpServlet {
 		case CODE_ALREADY_USED:
 			message = "You've already logged in with this code. Wait for your verification device to show another code, then enter it.";
 			break;
+		case TOO_BUSY:
+			message = "We're too busy to check your codes right now. Please wait a minute, then try again.";
+			toTroubleshooting = true;
+			break;
 		default:
 			throw new ServletException("Enum not covered: " + result);
 		}
@@ -107,6 +122,7 @@ public class ConfirmTotpLoginServlet extends HttpServlet {
 	}
 	
 	static void addSessionCookie(HttpServletResponse response, UserStore users, String username) {
+		// The user store signs the key, so expired or forged cookies are turned away before any database access; see DbBasedUserStore.
 		String sessionCookie = users.createNewLongLivedSession(username);
 		Cookie c = new Cookie("s", sessionCookie);
 		c.setPath("/");
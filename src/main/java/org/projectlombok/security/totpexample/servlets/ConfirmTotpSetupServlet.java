@@ -7,6 +7,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.projectlombok.security.totpexample.FlashMessages;
 import org.projectlombok.security.totpexample.Session;
 import org.projectlombok.security.totpexample.SessionNotFoundException;
 import org.projectlombok.security.totpexample.SessionStore;
@@ -33,11 +34,13 @@ public class ConfirmTotpSetupServlet extends HttpServlet {
 	private final UserStore users;
 	private final SessionStore sessions;
 	private final Totp totp;
+	private final FlashMessages flash;
 	
-	public ConfirmTotpSetupServlet(UserStore users, SessionStore sessions, Totp totp) {
+	public ConfirmTotpSetupServlet(UserStore users, SessionStore sessions, Totp totp, FlashMessages flash) {
 		this.users = users;
 		this.sessions = sessions;
 		this.totp = totp;
+		this.flash = flash;
 	}
 	
 	@Override protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -60,7 +63,15 @@ public class ConfirmTotpSetupServlet extends HttpServlet {
 		boolean hopeless;
 		switch (result.getResult()) {
 		case SUCCESS:
-			String username = session.getOrDefault(Totp.SESSIONKEY_USERNAME, null);
+			// The signup process is done; consume the session so it can't be used again.
+			String username;
+			try {
+				username = sessions.getAndInvalidate(session.getSessionKey()).get(Totp.SESSIONKEY_USERNAME);
+			} catch (SessionNotFoundException e) {
+				// The session is gone (it expired, or a double submit consumed it), so the error can't be stored in it.
+				response.sendRedirect(flash.redirectUrl("/signup", "The session has expired; sign up again."));
+				return;
+			}
 			finishSignup(response, username);
 			return;
 		case CODE_VERIFICATION_FAILURE:
@@ -80,6 +91,10 @@ public class ConfirmTotpSetupServlet extends HttpServlet {
 			message = "You've already confirmed with this code. Wait for your verification device to show another code, then enter it.";
 			hopeless = false;
 			break;
+		case TOO_BUSY:
+			message = "We're too busy to check your code right now. Please wait a minute, then try again.";
+			hopeless = false;
+			break;
 		default:
 			throw new ServletException("Enum not covered: " + result.getResult());
 		}
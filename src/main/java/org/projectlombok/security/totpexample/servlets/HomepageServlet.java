@@ -10,8 +10,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.projectlombok.security.totpexample.SessionStore;
-import org.projectlombok.security.totpexample.SessionStoreException;
+import org.projectlombok.security.totpexample.FlashMessages;
 
 import freemarker.template.Configuration;
 import freemarker.template.Template;
@@ -22,23 +21,15 @@ import freemarker.template.TemplateException;
  */
 public class HomepageServlet extends HttpServlet {
 	private final Template homepageTemplate;
-	private final SessionStore sessions;
+	private final FlashMessages flash;
 	
-	public HomepageServlet(Configuration templates, SessionStore sessions) throws IOException {
+	public HomepageServlet(Configuration templates, FlashMessages flash) throws IOException {
 		this.homepageTemplate = templates.getTemplate("homepage.html");
-		this.sessions = sessions;
+		this.flash = flash;
 	}
 	
 	@Override protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		String sessionKey = request.getParameter("si");
-		String userMessage = "";
-		if (sessionKey != null) {
-			try {
-				userMessage = sessions.get(sessionKey).getOrDefault("msg", "");
-			} catch (SessionStoreException e) {
-				userMessage = "";
-			}
-		}
+		String userMessage = flash.decode(request.getParameter(FlashMessages.PARAMETER));
 		Map<String, Object> root = new HashMap<>();
 		if (!userMessage.isEmpty()) root.put("userMsg", userMessage);
 		response.setContentType("text/html; charset=UTF-8");
@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -12,8 +11,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.projectlombok.security.totpexample.Session;
-import org.projectlombok.security.totpexample.SessionStore;
+import org.projectlombok.security.totpexample.FlashMessages;
 import org.projectlombok.security.totpexample.UserStore;
 
 import freemarker.template.Configuration;
@@ -24,15 +22,14 @@ import freemarker.template.TemplateException;
  * This servlet just serves up a dummy home page for logged in users. Its main feature is that it confirms that the user's login session is valid.
  */
 public class LoggedInUsersServlet extends HttpServlet {
-	private static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(30);
 	private final Template mainpageTemplate;
 	private final UserStore users;
-	private final SessionStore sessions;
+	private final FlashMessages flash;
 	
-	public LoggedInUsersServlet(Configuration templates, UserStore users, SessionStore sessions) throws IOException {
+	public LoggedInUsersServlet(Configuration templates, UserStore users, FlashMessages flash) throws IOException {
 		this.mainpageTemplate = templates.getTemplate("mainpage.html");
 		this.users = users;
-		this.sessions = sessions;
+		this.flash = flash;
 	}
 	
 	@Override protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -61,8 +58,6 @@ public class LoggedInUsersServlet extends HttpServlet {
 	}
 	
 	private void sendToLogin(HttpServletRequest request, HttpServletResponse response) throws IOException {
-		Session errorSession = sessions.create(DEFAULT_TIME_TO_LIVE);
-		errorSession.put("errMsg", "Please log in first.");
-		response.sendRedirect("/login?si=" + errorSession.getSessionKey());
+		response.sendRedirect(flash.redirectUrl("/login", "Please log in first."));
 	}
 }
@@ -10,6 +10,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.projectlombok.security.totpexample.FlashMessages;
 import org.projectlombok.security.totpexample.Session;
 import org.projectlombok.security.totpexample.SessionNotFoundException;
 import org.projectlombok.security.totpexample.SessionStore;
@@ -28,16 +29,18 @@ import freemarker.template.TemplateException;
 public class LoginServlet extends HttpServlet {
 	private final Template loginTemplate;
 	private final SessionStore sessions;
+	private final FlashMessages flash;
 	
-	public LoginServlet(Configuration templates, SessionStore sessions) throws IOException {
+	public LoginServlet(Configuration templates, SessionStore sessions, FlashMessages flash) throws IOException {
 		this.loginTemplate = templates.getTemplate("login.html");
 		this.sessions = sessions;
+		this.flash = flash;
 	}
 	
 	@Override protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		String sessionKey = request.getParameter("si");
-		String errorMessage = "";
-		if (sessionKey != null) {
+		String errorMessage = flash.decode(request.getParameter(FlashMessages.PARAMETER));
+		if (errorMessage.isEmpty() && sessionKey != null) {
 			try {
 				Session session = sessions.get(sessionKey);
 				errorMessage = session.getOrDefault("errMsg", "");
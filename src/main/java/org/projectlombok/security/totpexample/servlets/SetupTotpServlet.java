@@ -4,15 +4,16 @@ import java.io.IOException;
 import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.projectlombok.security.totpexample.FlashMessages;
 import org.projectlombok.security.totpexample.Session;
 import org.projectlombok.security.totpexample.SessionStore;
 import org.projectlombok.security.totpexample.Totp;
@@ -30,22 +31,18 @@ import freemarker.template.TemplateException;
  * It is possible to get here from further along the signup process, in case the user fails to verify their TOTP device by entering a correct code.
  */
 public class SetupTotpServlet extends HttpServlet {
-	// TODO take all these into a single central point, and.. our QR session store entry lasts for an hour but most others for 30 minutes.
-	//     --- I don't think it'll work if you wait, say, 40. 1 hour is still worth discussing; a user might have to install a TOTP app and the like,
-	//     but the point is: I think all the TTLs need to be equal, at least as far as a process (signup, or login) is concerned. That's all the more 
-	//     reason to centralize the constant someplace.
-	private static final long DEFAULT_TIME_TO_LIVE = TimeUnit.HOURS.toMillis(1);
-	
 	private final UserStore users;
 	private final SessionStore sessions;
 	private final Template setupTotpTemplate;
 	private final Totp totp;
+	private final FlashMessages flash;
 	
-	public SetupTotpServlet(Configuration templates, UserStore users, SessionStore sessions, Totp totp) throws IOException {
+	public SetupTotpServlet(Configuration templates, UserStore users, SessionStore sessions, Totp totp, FlashMessages flash) throws IOException {
 		this.setupTotpTemplate = templates.getTemplate("setupTotp.html");
 		this.users = users;
 		this.sessions = sessions;
 		this.totp = totp;
+		this.flash = flash;
 	}
 	
 	/*
@@ -107,8 +104,7 @@ public class SetupTotpServlet extends HttpServlet {
 			return;
 		}
 		
-		Session session = totp.startSetupTotp(username, "TOTP demo app");
-		session.put("password", password);
+		Session session = totp.startSetupTotp(username, "TOTP demo app", Collections.singletonMap("password", password), request.getRemoteAddr());
 		renderPage(response, session);
 	}
 	
@@ -135,12 +131,13 @@ public class SetupTotpServlet extends HttpServlet {
 	}
 	
 	private void renderPage(HttpServletResponse response, Session session) throws IOException, ServletException {
+		Map<String, String> values = session.snapshot();
 		Map<String, Object> root = new HashMap<>();
-		root.put("uri", session.getOrDefault(Totp.SESSIONKEY_URI, null));
+		root.put("uri", values.get(Totp.SESSIONKEY_URI));
 		root.put("key", session.getSessionKey());
-		String secret = session.getOrDefault(Totp.SESSIONKEY_SECRET, null);
+		String secret = values.get(Totp.SESSIONKEY_SECRET);
 		root.put("secret", secret);
-		String error = session.getOrDefault("errMsg", "");
+		String error = values.getOrDefault("errMsg", "");
 		if (!error.isEmpty()) {
 			root.put("errMsg", error);
 		}
@@ -158,8 +155,6 @@ public class SetupTotpServlet extends HttpServlet {
 	}
 	
 	private void error(HttpServletRequest request, HttpServletResponse response, String message) throws IOException {
-		Session session = sessions.create(DEFAULT_TIME_TO_LIVE);
-		session.put("errMsg", message);
-		response.sendRedirect("/signup?si=" + session.getSessionKey());
+		response.sendRedirect(flash.redirectUrl("/signup", message));
 	}
 }
@@ -10,6 +10,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.projectlombok.security.totpexample.FlashMessages;
 import org.projectlombok.security.totpexample.SessionStore;
 import org.projectlombok.security.totpexample.SessionStoreException;
 
@@ -27,16 +28,18 @@ import freemarker.template.TemplateException;
 public class SignupServlet extends HttpServlet {
 	private final Template signupTemplate;
 	private final SessionStore sessions;
+	private final FlashMessages flash;
 	
-	public SignupServlet(Configuration templates, SessionStore sessions) throws IOException {
+	public SignupServlet(Configuration templates, SessionStore sessions, FlashMessages flash) throws IOException {
 		this.signupTemplate = templates.getTemplate("signup.html");
 		this.sessions = sessions;
+		this.flash = flash;
 	}
 	
 	@Override protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		String sessionKey = request.getParameter("si");
-		String errorMessage = "";
-		if (sessionKey != null) {
+		String errorMessage = flash.decode(request.getParameter(FlashMessages.PARAMETER));
+		if (errorMessage.isEmpty() && sessionKey != null) {
 			try {
 				errorMessage = sessions.get(sessionKey).getOrDefault("errMsg", "");
 			} catch (SessionStoreException e) {
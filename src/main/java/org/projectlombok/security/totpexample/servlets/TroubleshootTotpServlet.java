@@ -4,13 +4,13 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.projectlombok.security.totpexample.FlashMessages;
 import org.projectlombok.security.totpexample.Session;
 import org.projectlombok.security.totpexample.SessionStore;
 import org.projectlombok.security.totpexample.Totp;
@@ -26,17 +26,16 @@ import freemarker.template.TemplateException;
  * You get here from the {@link LoginServlet}, and the submissions to the form generated by this servlet are handled by {@link ConfirmTotpLoginServlet}.
  */
 public class TroubleshootTotpServlet extends HttpServlet {
-	// SECURITY NOTE: TODO - explain this in some more detail.
-	private static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(30);
-	
 	private final SessionStore sessions;
 	private final Template troubleshootTotpTemplate;
 	private final Totp totp;
+	private final FlashMessages flash;
 	
-	public TroubleshootTotpServlet(Configuration templates, SessionStore sessions, Totp totp) throws IOException {
+	public TroubleshootTotpServlet(Configuration templates, SessionStore sessions, Totp totp, FlashMessages flash) throws IOException {
 		this.troubleshootTotpTemplate = templates.getTemplate("troubleshootTotp.html");
 		this.sessions = sessions;
 		this.totp = totp;
+		this.flash = flash;
 	}
 	
 	@Override protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -79,8 +78,6 @@ public class TroubleshootTotpServlet extends HttpServlet {
 	}
 	
 	private void error(HttpServletRequest request, HttpServletResponse response, String message) throws IOException {
-		Session session = sessions.create(DEFAULT_TIME_TO_LIVE);
-		session.put("errMsg", message);
-		response.sendRedirect("/login?si=" + session.getSessionKey());
+		response.sendRedirect(flash.redirectUrl("/login", message));
 	}
 }
@@ -11,11 +11,14 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.projectlombok.security.totpexample.CredentialStuffingDetector;
+import org.projectlombok.security.totpexample.FlashMessages;
 import org.projectlombok.security.totpexample.Session;
 import org.projectlombok.security.totpexample.SessionStore;
 import org.projectlombok.security.totpexample.Totp;
 import org.projectlombok.security.totpexample.Totp.TotpData;
 import org.projectlombok.security.totpexample.UserStore;
+import org.projectlombok.security.totpexample.UserStore.LoginContext;
 
 import freemarker.template.Configuration;
 import freemarker.template.Template;
@@ -28,19 +31,22 @@ import freemarker.template.TemplateException;
  */
 public class VerifyTotpServlet extends HttpServlet {
 	// SECURITY NOTE: TODO - explain this in some more detail.
-	private static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(30);
 	private static final long LOGIN_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(10);
 	
 	private final UserStore users;
 	private final SessionStore sessions;
 	private final Template verifyTotpTemplate;
 	private final Totp totp;
+	private final CredentialStuffingDetector stuffingDetector;
+	private final FlashMessages flash;
 	
-	public VerifyTotpServlet(Configuration templates, UserStore users, SessionStore sessions, Totp totp) throws IOException {
+	public VerifyTotpServlet(Configuration templates, UserStore users, SessionStore sessions, Totp totp, CredentialStuffingDetector stuffingDetector, FlashMessages flash) throws IOException {
 		this.verifyTotpTemplate = templates.getTemplate("verifyTotp.html");
 		this.users = users;
 		this.sessions = sessions;
 		this.totp = totp;
+		this.stuffingDetector = stuffingDetector;
+		this.flash = flash;
 	}
 	
 	/*
@@ -80,7 +86,9 @@ public class VerifyTotpServlet extends HttpServlet {
 			return;
 		}
 		
-		if (!users.userExists(username)) {
+		// One query for everything we need; the password hash check below then runs without holding on to a database connection.
+		LoginContext context = users.loadLoginContext(username);
+		if (context == null) {
 			/* SECURITY NOTE:
 			 * It is a common practice and security suggestion that a login form, whether the username doesn't exist or the password was wrong, generate the same error message.
 			 * 
@@ -101,7 +109,17 @@ public class VerifyTotpServlet extends HttpServlet {
 			return;
 		}
 		
-		if (!users.verifyPassword(username, password.toCharArray())) {
+		if (stuffingDetector.shouldShed(password)) {
+			/* SECURITY NOTE:
+			 * This exact password has just failed against lots of different usernames; someone is trying a list of leaked passwords (or one popular password) on every account.
+			 * We don't bother running BCrypt for it; that is exactly the CPU cost an attacker wants us to pay. The rare real user who happens to share that password can try again later.
+			 */
+			error(request, response, "Too many login attempts are being made right now; please try again in a few minutes.");
+			return;
+		}
+		
+		if (!users.verifyPassword(context, password.toCharArray())) {
+			stuffingDetector.recordFailure(username, password);
 			error(request, response, "You did not enter the right password.");
 			// TODO either talk about how we intentionally didn't worry about password bashing here, or we need to protect against it. Via IP or username or what?
 			// probably just a talk, covering:
@@ -114,8 +132,8 @@ public class VerifyTotpServlet extends HttpServlet {
 			return;
 		}
 		
-		TotpData totpData = totp.startCheckTotp(username);
-		Session session = sessions.create(LOGIN_TIME_TO_LIVE);
+		TotpData totpData = context.getTotpData();
+		Session session = sessions.create(LOGIN_TIME_TO_LIVE, request.getRemoteAddr());
 		session.put("username", username);
 		
 		if (totpData.isLockedOut()) {
@@ -144,8 +162,6 @@ public class VerifyTotpServlet extends HttpServlet {
 	}
 	
 	private void error(HttpServletRequest request, HttpServletResponse response, String message) throws IOException {
-		Session session = sessions.create(DEFAULT_TIME_TO_LIVE);
-		session.put("errMsg", message);
-		response.sendRedirect("/login?si=" + session.getSessionKey());
+		response.sendRedirect(flash.redirectUrl("/login", message));
 	}
 }
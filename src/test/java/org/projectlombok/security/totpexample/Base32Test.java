@@ -0,0 +1,90 @@
+package org.projectlombok.security.totpexample;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Base32Test {
+	@Test public void matchesKnownValues() {
+		// RFC 4648, lower cased.
+		assertEquals("mzxw6ytb", Base32.encode("fooba".getBytes(StandardCharsets.US_ASCII)));
+		assertArrayEquals("fooba".getBytes(StandardCharsets.US_ASCII), Base32.decode("mzxw6ytb"));
+		// The secret of the RFC 6238 test vectors, as a TOTP app would get it.
+		assertEquals("gezdgnbvgy3tqojqgezdgnbvgy3tqojq", Base32.encode("12345678901234567890".getBytes(StandardCharsets.US_ASCII)));
+		assertEquals("", Base32.encode(new byte[0]));
+	}
+	
+	@Test public void decodesSecretsLikeTotpUsedTo() {
+		// Secrets created before there was a Base32 class are stored as text, and must keep producing the same codes.
+		Random random = new Random(0);
+		for (int i = 0; i < 10000; i++) {
+			String secret = randomSecret(random);
+			assertArrayEquals(secret, originalToBytes(secret), Base32.decode(secret));
+		}
+		assertArrayEquals(originalToBytes("aaaaaaaaaaaaaaaa"), Base32.decode("aaaaaaaaaaaaaaaa"));
+		assertArrayEquals(originalToBytes("7777777777777777"), Base32.decode("7777777777777777"));
+	}
+	
+	@Test public void roundTrips() {
+		Random random = new Random(0);
+		for (int i = 0; i < 10000; i++) {
+			String secret = randomSecret(random);
+			assertEquals(secret, Base32.encode(Base32.decode(secret)));
+			
+			byte[] bytes = new byte[5 * random.nextInt(8)];
+			random.nextBytes(bytes);
+			assertArrayEquals(bytes, Base32.decode(Base32.encode(bytes)));
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUpperCase() {
+		Base32.decode("MZXW6YTB");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsPadding() {
+		Base32.decode("mzxw6===");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAPartialBlock() {
+		Base32.decode("mzxw6yt");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesToEncodeAPartialBlock() {
+		Base32.encode(new byte[4]);
+	}
+	
+	private static String randomSecret(Random random) {
+		StringBuilder secret = new StringBuilder();
+		for (int i = 0; i < 16; i++) secret.append(Base32.CHARS.charAt(random.nextInt(32)));
+		return secret.toString();
+	}
+	
+	/**
+	 * The decoder {@code Totp} had before {@code Base32} replaced it, copied verbatim (it only handles 16 character secrets).
+	 */
+	private static byte[] originalToBytes(String secret) {
+		byte[] result = new byte[10];
+		decode32(secret, result, 0, 0);
+		decode32(secret, result, 8, 5);
+		return result;
+	}
+	
+	private static void decode32(String secret, byte[] bytes, int secretOffset, int byteOffset) {
+		int[] values = new int[8];
+		for (int i = 0; i < 8; i++) {
+			values[i] = "abcdefghijklmnopqrstuvwxyz234567".indexOf(secret.charAt(i + secretOffset));
+		}
+		bytes[0 + byteOffset] = (byte) ((((values[0] & 0x1f) << 3) | ((values[1] & 0x1c) >> 2)) & 0xff);
+		bytes[1 + byteOffset] = (byte) ((((values[1] & 0x03) << 6) | ((values[2] & 0x1f) << 1) | ((values[3] & 0x10) >> 4)) & 0xff);
+		bytes[2 + byteOffset] = (byte) ((((values[3] & 0x0f) << 4) | ((values[4] & 0x1e) >> 1)) & 0xff);
+		bytes[3 + byteOffset] = (byte) ((((values[4] & 0x01) << 7) | ((values[5] & 0x1f) << 2) | ((values[6] & 0x18) >> 3)) & 0xff);
+		bytes[4 + byteOffset] = (byte) ((((values[6] & 0x07) << 5) | (values[7] & 0x1f)) & 0xff);
+	}
+}
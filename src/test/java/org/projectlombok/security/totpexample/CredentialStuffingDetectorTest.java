@@ -0,0 +1,48 @@
+package org.projectlombok.security.totpexample;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CredentialStuffingDetectorTest {
+	private final Crypto crypto = new Crypto();
+	
+	@Test public void shedsAPasswordOnceItFailedAgainstEnoughUsernames() {
+		CredentialStuffingDetector detector = new CredentialStuffingDetector(crypto, 5, TimeUnit.MINUTES.toMillis(10), 1 << 10);
+		for (int i = 0; i < 4; i++) {
+			detector.recordFailure("user" + i, "hunter2");
+			assertFalse(detector.shouldShed("hunter2"));
+		}
+		detector.recordFailure("user4", "hunter2");
+		assertTrue(detector.shouldShed("hunter2"));
+		assertTrue(detector.shouldShed("hunter2"));
+		assertEquals(2, detector.getShedAttempts());
+	}
+	
+	@Test public void countsEachUsernameOnlyOnce() {
+		// A user mistyping their own password over and over is not credential stuffing.
+		CredentialStuffingDetector detector = new CredentialStuffingDetector(crypto, 5, TimeUnit.MINUTES.toMillis(10), 1 << 10);
+		for (int i = 0; i < 100; i++) detector.recordFailure("alice", "hunter2");
+		assertFalse(detector.shouldShed("hunter2"));
+		assertEquals(0, detector.getShedAttempts());
+	}
+	
+	@Test public void onlyShedsTheSprayedPassword() {
+		CredentialStuffingDetector detector = new CredentialStuffingDetector(crypto, 5, TimeUnit.MINUTES.toMillis(10), 1 << 10);
+		for (int i = 0; i < 50; i++) detector.recordFailure("user" + i, "hunter2");
+		for (int i = 0; i < 1000; i++) detector.recordFailure("user" + i, "password" + i);
+		assertTrue(detector.shouldShed("hunter2"));
+		assertFalse(detector.shouldShed("correct horse battery staple"));
+		for (int i = 0; i < 1000; i++) assertFalse(detector.shouldShed("password" + i));
+	}
+	
+	@Test public void forgetsFailuresAfterTheWindow() throws InterruptedException {
+		CredentialStuffingDetector detector = new CredentialStuffingDetector(crypto, 5, 200, 1 << 10);
+		for (int i = 0; i < 5; i++) detector.recordFailure("user" + i, "hunter2");
+		assertTrue(detector.shouldShed("hunter2"));
+		Thread.sleep(450);
+		assertFalse(detector.shouldShed("hunter2"));
+	}
+}
@@ -0,0 +1,43 @@
+package org.projectlombok.security.totpexample.impl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.projectlombok.security.totpexample.Crypto;
+
+public class BloomFilterTest {
+	private final Crypto crypto = new Crypto();
+	
+	@Test public void neverForgetsAnAddedString() {
+		BloomFilter filter = new BloomFilter(crypto, 1000, 0.01);
+		for (int i = 0; i < 5000; i++) filter.add("user" + i);
+		for (int i = 0; i < 5000; i++) assertTrue("user" + i, filter.mightContain("user" + i));
+		assertEquals(5000, filter.getAddedCount());
+	}
+	
+	@Test public void staysCloseToTheRequestedFalsePositiveRateAtTheExpectedSize() {
+		BloomFilter filter = new BloomFilter(crypto, 10000, 0.01);
+		for (int i = 0; i < 10000; i++) filter.add("user" + i);
+		
+		int falsePositives = 0;
+		for (int i = 0; i < 100000; i++) if (filter.mightContain("stranger" + i)) falsePositives++;
+		double measured = falsePositives / 100000.0;
+		assertTrue("measured " + measured, measured < 0.02);
+		assertEquals(measured, filter.getFalsePositiveRate(), 0.005);
+	}
+	
+	@Test public void reportsWhenItNeedsToBeRebuilt() {
+		// DbBasedUserStore rebuilds its username filter once the estimated false positive rate passes 5%.
+		BloomFilter filter = new BloomFilter(crypto, 1000, 0.01);
+		for (int i = 0; i < 1000; i++) filter.add("user" + i);
+		assertTrue(filter.getFalsePositiveRate() < 0.05);
+		for (int i = 1000; i < 4000; i++) filter.add("user" + i);
+		assertTrue(filter.getFalsePositiveRate() > 0.05);
+		
+		BloomFilter rebuilt = new BloomFilter(crypto, 8000, 0.01);
+		for (int i = 0; i < 4000; i++) rebuilt.add("user" + i);
+		assertTrue(rebuilt.getFalsePositiveRate() < 0.01);
+		assertTrue(rebuilt.getSizeInBytes() > filter.getSizeInBytes());
+		for (int i = 0; i < 4000; i++) assertTrue(rebuilt.mightContain("user" + i));
+	}
+}
@@ -0,0 +1,74 @@
+package org.projectlombok.security.totpexample.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class HashedTimingWheelTest {
+	private static final long TICK = 10;
+	
+	private final Map<String, Long> expired = new ConcurrentHashMap<>();
+	private HashedTimingWheel<String> wheel;
+	
+	@After public void shutdown() {
+		if (wheel != null) wheel.shutdown();
+	}
+	
+	private CountDownLatch start(int wheelSize, int expectedExpiries) {
+		CountDownLatch latch = new CountDownLatch(expectedExpiries);
+		wheel = new HashedTimingWheel<>("test-wheel", TICK, wheelSize, item -> {
+			expired.put(item, System.currentTimeMillis());
+			latch.countDown();
+		});
+		return latch;
+	}
+	
+	@Test public void expiresItemsNoEarlierThanTheirExpiryTime() throws InterruptedException {
+		CountDownLatch latch = start(64, 3);
+		long now = System.currentTimeMillis();
+		wheel.schedule("a", now + 50);
+		wheel.schedule("b", now + 120);
+		wheel.schedule("c", now + 200);
+		
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertTrue(expired.get("a") >= now + 50);
+		assertTrue(expired.get("b") >= now + 120);
+		assertTrue(expired.get("c") >= now + 200);
+	}
+	
+	@Test public void keepsItemsDueInALaterRevolution() throws InterruptedException {
+		// 4 buckets of 10ms: the wheel goes round every 40ms, so this item passes its bucket several times before it is due.
+		CountDownLatch latch = start(4, 1);
+		long expiresAt = System.currentTimeMillis() + 250;
+		wheel.schedule("far", expiresAt);
+		
+		Thread.sleep(100);
+		assertFalse(expired.containsKey("far"));
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertTrue(expired.get("far") >= expiresAt);
+	}
+	
+	@Test public void expiresItemsThatAreAlreadyDue() throws InterruptedException {
+		CountDownLatch latch = start(64, 1);
+		wheel.schedule("past", System.currentTimeMillis() - 1000);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+	}
+	
+	@Test public void keepsTickingAfterAFailingCallback() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		wheel = new HashedTimingWheel<>("test-wheel", TICK, 64, item -> {
+			if (item.equals("bad")) throw new IllegalStateException("expected by the test");
+			latch.countDown();
+		});
+		long now = System.currentTimeMillis();
+		wheel.schedule("bad", now + 20);
+		wheel.schedule("good", now + 100);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,220 @@
+package org.projectlombok.security.totpexample.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectlombok.security.totpexample.Crypto;
+import org.projectlombok.security.totpexample.Session;
+import org.projectlombok.security.totpexample.SessionNotFoundException;
+import org.projectlombok.security.totpexample.SessionStoreException;
+
+public class MappedFileSessionStoreTest {
+	private static final int SLOT_SIZE = 256;
+	private static final int SLOT_COUNT = 64;
+	private static final long TTL = 60000;
+	
+	// The file layout, as documented in MappedFileSessionStore.
+	private static final int HEADER_SIZE = 64;
+	private static final int LIVE = 1;
+	private static final int TOMBSTONE = 2;
+	private static final int OFFSET_GENERATION = 1;
+	private static final int OFFSET_CRC = 16;
+	
+	private final Crypto crypto = new Crypto();
+	private File file;
+	
+	@Before public void createFile() throws IOException {
+		file = File.createTempFile("sessions", ".slots");
+		file.delete();
+	}
+	
+	@After public void deleteFile() {
+		file.delete();
+	}
+	
+	private MappedFileSessionStore open() {
+		return new MappedFileSessionStore(crypto, file, SLOT_SIZE, SLOT_COUNT);
+	}
+	
+	@Test public void storesAndUpdatesSessions() {
+		MappedFileSessionStore store = open();
+		Session session = store.create(TTL);
+		session.put("username", "jänis").put("step", "1");
+		session.put("step", "2");
+		Map<String, String> more = new HashMap<>();
+		more.put("a", "b");
+		more.put("c", "d");
+		session.putAll(more);
+		
+		Session found = store.get(session.getSessionKey());
+		assertEquals("jänis", found.getOrDefault("username", null));
+		assertEquals("2", found.getOrDefault("step", null));
+		assertEquals("fallback", found.getOrDefault("missing", "fallback"));
+		assertEquals(4, found.snapshot().size());
+	}
+	
+	@Test public void keepsSessionsAcrossARestart() {
+		MappedFileSessionStore store = open();
+		String[] keys = new String[30];
+		for (int i = 0; i < keys.length; i++) {
+			Session session = store.create(TTL);
+			session.put("n", "" + i);
+			keys[i] = session.getSessionKey();
+		}
+		store.invalidate(keys[3]);
+		
+		MappedFileSessionStore reopened = open();
+		for (int i = 0; i < keys.length; i++) {
+			if (i == 3) continue;
+			assertEquals("" + i, reopened.get(keys[i]).getOrDefault("n", null));
+		}
+		assertMissing(reopened, keys[3]);
+	}
+	
+	@Test public void getAndInvalidateEndsTheSession() {
+		MappedFileSessionStore store = open();
+		Session session = store.create(TTL);
+		session.put("k", "v");
+		assertEquals(Collections.singletonMap("k", "v"), store.getAndInvalidate(session.getSessionKey()));
+		assertMissing(store, session.getSessionKey());
+	}
+	
+	@Test public void expiresSessions() throws InterruptedException {
+		MappedFileSessionStore store = open();
+		Session session = store.create(50);
+		Thread.sleep(100);
+		assertMissing(store, session.getSessionKey());
+	}
+	
+	@Test(expected = SessionStoreException.class)
+	public void rejectsASessionThatDoesNotFitItsSlot() {
+		char[] big = new char[SLOT_SIZE];
+		Arrays.fill(big, 'x');
+		open().create(TTL).put("big", new String(big));
+	}
+	
+	@Test(expected = SessionStoreException.class)
+	public void refusesAFileCreatedWithOtherSettings() {
+		open();
+		new MappedFileSessionStore(crypto, file, SLOT_SIZE * 2, SLOT_COUNT / 2);
+	}
+	
+	@Test public void discardsAHalfWrittenSlot() throws IOException {
+		MappedFileSessionStore store = open();
+		Session survivor = store.create(TTL);
+		survivor.put("n", "1");
+		Session broken = store.create(TTL);
+		broken.put("n", "2");
+		
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			int slot = findSlot(raf, LIVE, broken.getSessionKey());
+			raf.seek(slotOffset(slot) + OFFSET_CRC);
+			raf.writeInt(raf.readInt() ^ 1);
+		}
+		
+		MappedFileSessionStore reopened = open();
+		assertEquals("1", reopened.get(survivor.getSessionKey()).getOrDefault("n", null));
+		assertMissing(reopened, broken.getSessionKey());
+	}
+	
+	@Test public void keepsTheNewerVersionIfTheOldOneWasNotDiscardedYet() throws IOException {
+		Session session = open().create(TTL);
+		session.put("n", "1");
+		session.put("n", "2");
+		
+		// As if the server died right after writing the new version: the previous version is still live too.
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			reviveTombstone(raf, session.getSessionKey());
+		}
+		
+		MappedFileSessionStore reopened = open();
+		assertEquals("2", reopened.get(session.getSessionKey()).getOrDefault("n", null));
+		reopened.invalidate(session.getSessionKey());
+		assertMissing(open(), session.getSessionKey());
+	}
+	
+	@Test public void keepsTheOldVersionIfTheNewOneWasHalfWritten() throws IOException {
+		Session session = open().create(TTL);
+		session.put("n", "1");
+		session.put("n", "2");
+		
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			int newer = findSlot(raf, LIVE, session.getSessionKey());
+			reviveTombstone(raf, session.getSessionKey());
+			raf.seek(slotOffset(newer) + OFFSET_CRC);
+			raf.writeInt(raf.readInt() ^ 1);
+		}
+		
+		assertEquals("1", open().get(session.getSessionKey()).getOrDefault("n", null));
+	}
+	
+	@Test public void survivesTheGenerationWrappingAround() throws IOException {
+		MappedFileSessionStore store = open();
+		Session session = store.create(TTL);
+		for (int i = 0; i < 600; i++) {
+			session.put("n", "" + i);
+			if (i % 100 != 99) continue;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				reviveTombstone(raf, session.getSessionKey());
+			}
+			assertEquals("" + i, open().get(session.getSessionKey()).getOrDefault("n", null));
+		}
+	}
+	
+	private static void assertMissing(MappedFileSessionStore store, String sessionKey) {
+		try {
+			store.get(sessionKey);
+			fail("Session should not exist: " + sessionKey);
+		} catch (SessionNotFoundException expected) {
+			// Expected.
+		}
+	}
+	
+	private static long slotOffset(int slot) {
+		return HEADER_SIZE + (long) slot * SLOT_SIZE;
+	}
+	
+	/**
+	 * Finds the slot in the given state whose payload starts with the session key; returns -1 if there is none.
+	 */
+	private static int findSlot(RandomAccessFile raf, int state, String sessionKey) throws IOException {
+		byte[] key = SessionPayloads.encode(new String[] {sessionKey});
+		byte[] found = new byte[key.length];
+		for (int slot = 0; slot < SLOT_COUNT; slot++) {
+			raf.seek(slotOffset(slot));
+			if (raf.read() != state) continue;
+			raf.seek(slotOffset(slot) + OFFSET_CRC + 4);
+			raf.readFully(found);
+			// Skip the string count; the rest is the first string, which is always the session key.
+			if (Arrays.equals(Arrays.copyOfRange(found, 2, found.length), Arrays.copyOfRange(key, 2, key.length))) return slot;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Marks the version of this session right before the live one as live again.
+	 */
+	private static void reviveTombstone(RandomAccessFile raf, String sessionKey) throws IOException {
+		int live = findSlot(raf, LIVE, sessionKey);
+		int previous = findSlot(raf, TOMBSTONE, sessionKey);
+		assertTrue("no discarded version of the session found", live >= 0 && previous >= 0);
+		assertEquals((byte) (generation(raf, live) - 1), generation(raf, previous));
+		raf.seek(slotOffset(previous));
+		raf.write(LIVE);
+	}
+	
+	private static byte generation(RandomAccessFile raf, int slot) throws IOException {
+		raf.seek(slotOffset(slot) + OFFSET_GENERATION);
+		return raf.readByte();
+	}
+}
@@ -0,0 +1,194 @@
+package org.projectlombok.security.totpexample.impl;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectlombok.security.totpexample.Crypto;
+import org.projectlombok.security.totpexample.Totp.TotpData;
+
+public class SchemaMigrationsTest {
+	private static final AtomicInteger databases = new AtomicInteger();
+	
+	private final Crypto crypto = new Crypto();
+	private String url;
+	private Connection connection;
+	private final List<String> applied = new ArrayList<>();
+	private final List<ConnectionPool> pools = new ArrayList<>();
+	
+	@Before public void openDatabase() throws SQLException {
+		// An in-memory database lives until its last connection is closed; this one is kept open for the whole test.
+		url = "jdbc:h2:mem:migrations" + databases.incrementAndGet();
+		connection = DriverManager.getConnection(url);
+		connection.setAutoCommit(false);
+	}
+	
+	@After public void closeDatabase() throws SQLException {
+		for (ConnectionPool pool : pools) pool.close();
+		connection.close();
+	}
+	
+	private SchemaMigrations.Migration record(String name) {
+		return c -> applied.add(name);
+	}
+	
+	@Test public void runsEveryMigrationOnce() throws SQLException {
+		assertEquals(0, new SchemaMigrations().add(record("1")).add(record("2")).migrate(connection));
+		assertEquals(2, new SchemaMigrations().add(record("1")).add(record("2")).migrate(connection));
+		assertEquals(2, new SchemaMigrations().add(record("1")).add(record("2")).add(record("3")).migrate(connection));
+		assertEquals(3, new SchemaMigrations().add(record("1")).add(record("2")).add(record("3")).migrate(connection));
+		assertEquals(Arrays.asList("1", "2", "3"), applied);
+	}
+	
+	@Test public void refusesADatabaseNewerThanTheCode() throws SQLException {
+		new SchemaMigrations().add(record("1")).add(record("2")).migrate(connection);
+		try {
+			new SchemaMigrations().add(record("1")).migrate(connection);
+			fail("An older release must not run against a newer database");
+		} catch (SQLException expected) {
+			// Expected.
+		}
+	}
+	
+	@Test public void stopsAtAFailingMigration() throws SQLException {
+		SchemaMigrations failing = new SchemaMigrations()
+			.add(record("1"))
+			.add(c -> {
+				throw new SQLException("expected by the test");
+			})
+			.add(record("3"));
+		try {
+			failing.migrate(connection);
+			fail("The failing migration should have been reported");
+		} catch (SQLException expected) {
+			connection.rollback();
+		}
+		
+		assertEquals(1, new SchemaMigrations().add(record("1")).add(record("2")).add(record("3")).migrate(connection));
+		assertEquals(Arrays.asList("1", "2", "3"), applied);
+	}
+	
+	@Test public void createsTheLatestSchemaOnAnEmptyDatabase() throws SQLException {
+		DbBasedUserStore store = openUserStore();
+		store.createUserWithTotp("alice", "correct horse".toCharArray(), "abcdefghijklmnop", 1234L);
+		assertTotp(store, "alice", "abcdefghijklmnop", 1234L);
+		assertEquals(4, schemaVersion());
+	}
+	
+	@Test public void upgradesADatabaseFromBeforeMigrations() throws SQLException {
+		createOriginalTables();
+		insertOriginalUser("alice", "correct horse", "abcdefghijklmnop", 1234L, true);
+		insertOriginalUser("bob", "battery staple", "7777777777777777", 99L, false);
+		
+		DbBasedUserStore store = openUserStore();
+		assertUpgraded(store);
+		
+		// Starting again on the upgraded database changes nothing.
+		assertUpgraded(openUserStore());
+		
+		String sessionKey = store.createNewLongLivedSession("alice");
+		assertEquals("alice", store.getUserFromSessionKey(sessionKey));
+	}
+	
+	@Test public void finishesAnInterruptedUpgrade() throws SQLException {
+		createOriginalTables();
+		insertOriginalUser("alice", "correct horse", "abcdefghijklmnop", 1234L, true);
+		insertOriginalUser("bob", "battery staple", "7777777777777777", 99L, false);
+		// As if the server died while copying the TOTP data to the new table: version 2 runs again, and must start the copy over.
+		try (Statement s = connection.createStatement()) {
+			s.execute("create table TOTPSTORE_V2 (USERID int not null primary key, LASTTICK bigint not null, LOCKEDOUT boolean not null, SECRET varbinary not null);");
+			s.execute("insert into TOTPSTORE_V2 select ID, 0, false, X'00' from USERSTORE where USERNAME = 'alice';");
+		}
+		connection.commit();
+		
+		assertUpgraded(openUserStore());
+	}
+	
+	private DbBasedUserStore openUserStore() {
+		ConnectionPool pool = new ConnectionPool(url, 2, 5000);
+		pools.add(pool);
+		return new DbBasedUserStore(crypto, pool);
+	}
+	
+	private void assertUpgraded(DbBasedUserStore store) throws SQLException {
+		assertEquals(4, schemaVersion());
+		assertTrue(store.userExists("alice"));
+		assertTrue(store.userExists("bob"));
+		assertFalse(store.userExists("carol"));
+		assertTrue(store.verifyPassword("alice", "correct horse".toCharArray()));
+		assertTotp(store, "alice", "abcdefghijklmnop", 1234L);
+		assertTotp(store, "bob", "7777777777777777", 99L);
+		
+		assertTrue(SchemaMigrations.columnExists(connection, "TOTPSTORE", "USERID"));
+		assertFalse(SchemaMigrations.columnExists(connection, "TOTPSTORE", "USERNAME"));
+		assertFalse(SchemaMigrations.tableExists(connection, "TOTPSTORE_V2"));
+		assertTrue(SchemaMigrations.columnExists(connection, "USERSTORE", "EPOCH"));
+		assertTrue(SchemaMigrations.tableExists(connection, "USERSTOREMETA"));
+		connection.commit();
+	}
+	
+	private static void assertTotp(DbBasedUserStore store, String username, String secret, long lastSuccessfulTick) {
+		TotpData totp = store.getTotpData(username);
+		assertEquals(secret, totp.getSecret());
+		assertEquals(lastSuccessfulTick, totp.getLastSuccessfulTick());
+		assertFalse(totp.isLockedOut());
+	}
+	
+	private int schemaVersion() throws SQLException {
+		try (Statement s = connection.createStatement(); ResultSet result = s.executeQuery("select max(VERSION) from SCHEMA_VERSION;")) {
+			result.next();
+			int version = result.getInt(1);
+			connection.commit();
+			return version;
+		}
+	}
+	
+	/**
+	 * The tables exactly as the first release created them, without any {@code SCHEMA_VERSION}.
+	 */
+	private void createOriginalTables() throws SQLException {
+		try (Statement s = connection.createStatement()) {
+			s.execute("create table USERSTORE (ID int identity, USERNAME varchar not null unique, PASSWORDHASH varchar not null);");
+			s.execute("create table TOTPSTORE (ID int identity, USERNAME varchar not null unique, LASTTICK bigint not null, LOCKEDOUT boolean not null, SECRET varchar not null, " +
+				"foreign key (USERNAME) references USERSTORE(USERNAME) on delete cascade);");
+			s.execute("create table USERSESSIONSTORE (ID int identity, USERID int not null, SESSIONKEY varchar not null, EXPIRES timestamp not null, " +
+				"foreign key (USERID) references USERSTORE(ID) on delete cascade);");
+			s.execute("create index on USERSESSIONSTORE(SESSIONKEY);");
+		}
+		connection.commit();
+	}
+	
+	private void insertOriginalUser(String username, String password, String secret, long lastTick, boolean withSession) throws SQLException {
+		try (
+			PreparedStatement user = connection.prepareStatement("insert into USERSTORE (USERNAME, PASSWORDHASH) values (?, ?);");
+			PreparedStatement totp = connection.prepareStatement("insert into TOTPSTORE (USERNAME, LASTTICK, LOCKEDOUT, SECRET) values (?, ?, false, ?);");
+			PreparedStatement session = connection.prepareStatement("insert into USERSESSIONSTORE (USERID, SESSIONKEY, EXPIRES) select ID, ?, dateadd('DAY', 1, now()) from USERSTORE where USERNAME = ?;")) {
+			
+			user.setString(1, username);
+			user.setString(2, crypto.hashPassword(password.toCharArray()));
+			user.executeUpdate();
+			totp.setString(1, username);
+			totp.setLong(2, lastTick);
+			totp.setString(3, secret);
+			totp.executeUpdate();
+			if (withSession) {
+				session.setString(1, crypto.generateRandomKey(32));
+				session.setString(2, username);
+				session.executeUpdate();
+			}
+		}
+		connection.commit();
+	}
+}
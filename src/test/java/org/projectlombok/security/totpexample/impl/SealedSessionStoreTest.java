@@ -0,0 +1,130 @@
+package org.projectlombok.security.totpexample.impl;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+import org.projectlombok.security.totpexample.Crypto;
+import org.projectlombok.security.totpexample.Session;
+import org.projectlombok.security.totpexample.SessionNotFoundException;
+
+public class SealedSessionStoreTest {
+	private static final long TTL = 60000;
+	
+	private final Crypto crypto = new Crypto();
+	private final SealedSessionStore store = new SealedSessionStore(crypto);
+	
+	@Test public void sealsTheContentsIntoTheKey() {
+		Session session = store.create(TTL);
+		String empty = session.getSessionKey();
+		session.put("username", "jänis").put("secret", "hunter2");
+		String sessionKey = session.getSessionKey();
+		assertNotEquals(empty, sessionKey);
+		
+		Session opened = store.get(sessionKey);
+		assertEquals("jänis", opened.getOrDefault("username", null));
+		assertEquals("hunter2", opened.getOrDefault("secret", null));
+		assertTrue(store.get(empty).snapshot().isEmpty());
+	}
+	
+	@Test public void hidesTheContentsFromTheUser() {
+		Session session = store.create(TTL);
+		session.put("secret", "hunter2hunter2");
+		byte[] token = Base64.getUrlDecoder().decode(session.getSessionKey());
+		String raw = new String(token, StandardCharsets.ISO_8859_1);
+		assertFalse(raw.contains("hunter2"));
+		assertFalse(raw.contains("secret"));
+	}
+	
+	@Test public void refusesTamperedKeys() {
+		Session session = store.create(TTL);
+		session.put("username", "alice");
+		byte[] token = Base64.getUrlDecoder().decode(session.getSessionKey());
+		for (int i = 0; i < token.length; i++) {
+			byte[] tampered = token.clone();
+			tampered[i] ^= 1;
+			assertNotFound(store, Base64.getUrlEncoder().withoutPadding().encodeToString(tampered));
+		}
+		assertNotFound(store, Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(token, token.length - 1)));
+		assertNotFound(store, "not a session key!");
+		assertNotFound(store, "");
+		assertNotFound(store, null);
+	}
+	
+	@Test public void onlyOpensKeysSealedWithTheSameKey() {
+		byte[] key = crypto.generateBytes(32);
+		SealedSessionStore a = new SealedSessionStore(crypto, key);
+		SealedSessionStore b = new SealedSessionStore(crypto, key);
+		Session session = a.create(TTL);
+		session.put("username", "alice");
+		
+		assertEquals("alice", b.get(session.getSessionKey()).getOrDefault("username", null));
+		assertNotFound(store, session.getSessionKey());
+	}
+	
+	@Test public void expires() throws InterruptedException {
+		Session session = store.create(50);
+		session.put("username", "alice");
+		String sessionKey = session.getSessionKey();
+		assertNotNull(store.get(sessionKey));
+		Thread.sleep(100);
+		assertNotFound(store, sessionKey);
+	}
+	
+	@Test public void getAndInvalidateWorksOnlyOnce() {
+		Session session = store.create(TTL);
+		session.put("step", "1");
+		String older = session.getSessionKey();
+		session.put("step", "2");
+		String newer = session.getSessionKey();
+		
+		assertEquals(Collections.singletonMap("step", "2"), store.getAndInvalidate(newer));
+		try {
+			store.getAndInvalidate(newer);
+			fail("A session can only be finished once");
+		} catch (SessionNotFoundException expected) {
+			// Expected.
+		}
+		// Any other key of the same session is refused too.
+		assertNotFound(store, older);
+		assertNotFound(store, newer);
+	}
+	
+	@Test public void invalidateEndsEveryKeyOfTheSession() {
+		Session session = store.create(TTL);
+		String first = session.getSessionKey();
+		session.put("username", "alice");
+		store.invalidate(session.getSessionKey());
+		assertNotFound(store, first);
+		assertNotFound(store, session.getSessionKey());
+		
+		// Invalidating something that isn't a live session is not an error.
+		store.invalidate(session.getSessionKey());
+		store.invalidate("garbage");
+		assertEquals(1, store.getEndedCount());
+	}
+	
+	@Test public void forgetsEndedSessionsOnceTheyExpire() throws InterruptedException {
+		Session session = store.create(100);
+		store.invalidate(session.getSessionKey());
+		assertEquals(1, store.getEndedCount());
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while (store.getEndedCount() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+		assertEquals(0, store.getEndedCount());
+	}
+	
+	private static void assertNotFound(SealedSessionStore store, String sessionKey) {
+		try {
+			Map<String, String> contents = store.get(sessionKey).snapshot();
+			fail("Session should not exist: " + contents);
+		} catch (SessionNotFoundException expected) {
+			// Expected.
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package org.projectlombok.security.totpexample.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.projectlombok.security.totpexample.SessionStoreException;
+
+public class SessionPayloadsTest {
+	@Test public void roundTrips() {
+		String[] strings = {"session-key", "username", "jänis", "", "empty value above", "🔑", "a surrogate pair"};
+		assertArrayEquals(strings, SessionPayloads.decode(SessionPayloads.encode(strings)));
+		assertArrayEquals(new String[0], SessionPayloads.decode(SessionPayloads.encode(new String[0])));
+	}
+	
+	@Test public void decodesFromTheStartOfALargerBuffer() {
+		byte[] payload = SessionPayloads.encode(new String[] {"a", "b"});
+		byte[] buffer = Arrays.copyOf(payload, payload.length + 100);
+		Arrays.fill(buffer, payload.length, buffer.length, (byte) 0x7F);
+		assertArrayEquals(new String[] {"a", "b"}, SessionPayloads.decode(buffer, payload.length));
+	}
+	
+	@Test(expected = SessionStoreException.class)
+	public void rejectsATruncatedPayload() {
+		byte[] payload = SessionPayloads.encode(new String[] {"key", "value"});
+		SessionPayloads.decode(payload, payload.length - 1);
+	}
+	
+	@Test(expected = SessionStoreException.class)
+	public void rejectsAPayloadCountingMoreStringsThanItHolds() {
+		byte[] payload = SessionPayloads.encode(new String[] {"key", "value"});
+		payload[1] = 3;
+		SessionPayloads.decode(payload);
+	}
+	
+	@Test(expected = SessionStoreException.class)
+	public void rejectsAStringTooLargeToEncode() {
+		char[] big = new char[0x10000];
+		Arrays.fill(big, 'x');
+		SessionPayloads.encode(new String[] {new String(big)});
+	}
+	
+	@Test public void replacesOrAppendsEntries() {
+		String[] entries = {"session-key", "a", "1", "b", "2"};
+		String[] replaced = SessionPayloads.with(entries, 1, "b", "3");
+		assertArrayEquals(new String[] {"session-key", "a", "1", "b", "3"}, replaced);
+		assertEquals("2", entries[4]);
+		
+		String[] appended = SessionPayloads.with(entries, 1, "c", "4");
+		assertArrayEquals(new String[] {"session-key", "a", "1", "b", "2", "c", "4"}, appended);
+		assertEquals("4", SessionPayloads.get(appended, 1, "c"));
+		assertNull(SessionPayloads.get(appended, 1, "d"));
+	}
+	
+	@Test public void skipsEverythingBeforeTheOffset() {
+		// The session key at the start is not a key/value pair; looking it up as a key must not find the first value.
+		String[] entries = {"session-key", "a", "1"};
+		assertNull(SessionPayloads.get(entries, 1, "session-key"));
+		assertEquals("1", SessionPayloads.get(entries, 1, "a"));
+	}
+}